@@ -445,6 +445,12 @@ class BDBClient(store: BDBStore) {
             }
           }
 
+          if( group.count == 1 ) {
+            group.max_expiration = entry.expiration
+          } else if( group.max_expiration != 0 ) {
+            group.max_expiration = if( entry.expiration == 0 ) 0 else entry.expiration.max(group.max_expiration)
+          }
+
           if( group.count == limit) {
             rc += group
             group = null
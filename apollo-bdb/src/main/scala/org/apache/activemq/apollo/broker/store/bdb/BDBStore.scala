@@ -52,6 +52,12 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(500)
+
+  override protected def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(false)
+
+  override protected def flush_pipeline_depth = config.flush_pipeline_depth.getOrElse(1)
+
+  override protected def flush_batch_size = Option(config.flush_batch_size).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(super.flush_batch_size)
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -153,6 +159,7 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def remove_queue(queueKey: Long)(callback: (Boolean) => Unit) = {
+    remove_flush_stats(queueKey)
     write_executor {
       client.removeQueue(queueKey,^{ callback(true) })
     }
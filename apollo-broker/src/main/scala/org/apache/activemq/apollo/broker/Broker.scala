@@ -248,6 +248,8 @@ class Broker() extends BaseService with SecuredResource {
 
   val dispatch_queue = createQueue("broker")
 
+  val memory_manager = new MemoryManager
+
   def id = "default"
 
   val connection_id_counter = new LongCounter
@@ -358,6 +360,7 @@ class Broker() extends BaseService with SecuredResource {
           }
         }
       }
+      memory_manager.rebalance
 
       schedule_virtualhost_maintenance
     }
@@ -378,6 +381,8 @@ class Broker() extends BaseService with SecuredResource {
     import OptionSupport._
     init_logs
 
+    memory_manager.limit = Option(config.memory_limit).map(MemoryPropertyEditor.parse(_)).getOrElse(-1L)
+
     key_storage = if (config.key_storage != null) {
       new KeyStorage(config.key_storage)
     } else {
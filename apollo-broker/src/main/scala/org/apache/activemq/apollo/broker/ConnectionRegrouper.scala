@@ -0,0 +1,241 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util.Log
+import org.apache.activemq.apollo.dto.{FlowGroupDTO, RegroupStatusDTO}
+import collection.mutable.{ListBuffer, HashMap}
+
+object ConnectionRegrouper extends Log {
+
+  /**
+   * How far over it's fair share of the load a group of dispatch
+   * queues is allowed to grow before it gets split across threads.
+   */
+  val LOAD_SLACK = 1.25
+
+  /**
+   * How long to wait for the queues to report their flows before the
+   * sample is abandoned and a new one is started.
+   */
+  val SAMPLE_TIMEOUT = 30*1000L
+}
+
+/**
+ * <p>
+ * Periodically samples the message rates flowing between the producers,
+ * destinations and consumers of a virtual host.  The dispatch queues which
+ * exchange the most data are grouped together as long as a group does not
+ * exceed it's fair share of the total load, and the groups are then spread
+ * over the dispatch threads so that the threads are evenly loaded.
+ * </p>
+ */
+class ConnectionRegrouper(val router:LocalRouter) {
+  import ConnectionRegrouper._
+
+  /**
+   * A message flow between two dispatch queues.
+   */
+  case class Flow(source:DispatchQueue, target:DispatchQueue, key:AnyRef, size_counter:Long)
+
+  class Node(val queue:DispatchQueue) {
+    var load = 0L
+    var parent = this
+    var group_load = 0L
+    var thread = -1
+
+    def root:Node = {
+      if( parent ne this ) {
+        parent = parent.root
+      }
+      parent
+    }
+  }
+
+  // the size counters of the previous sample, keyed by session.
+  var last_counters = HashMap[AnyRef, Long]()
+  var last_sample_at = 0L
+
+  // when the sample in progress was started, 0 if there is none.  The
+  // generation lets the replies of an abandoned sample get ignored.
+  var sampling_since = 0L
+  var sample_generation = 0L
+
+  // replaced on the router's dispatch queue, read by the web console.
+  @volatile
+  var status = new RegroupStatusDTO
+
+  def dispatch_queue = router.dispatch_queue
+
+  /**
+   * Samples the message flows of all the queues and topics, and then
+   * regroups the dispatch queues.
+   */
+  def regroup = {
+    dispatch_queue.assertExecuting()
+    val now = router.virtual_host.broker.now
+    if( sampling_since == 0 || now - sampling_since > SAMPLE_TIMEOUT ) {
+      if( sampling_since != 0 ) {
+        warn("Connection regrouping sample timed out, starting a new one.")
+      }
+      sampling_since = now
+      sample_generation += 1
+      val generation = sample_generation
+      val flows = ListBuffer[Flow]()
+
+      // Topic deliveries go straight from the producer to the consumer.
+      router.local_topic_domain.destinations.foreach { topic =>
+        topic.proxy_sessions.foreach {
+          case session:Topic#ProxyConsumerSession =>
+            session.consumer match {
+              case queue:Queue => // sampled as an inbound session of the queue
+              case consumer =>
+                flows += Flow(session.producer.dispatch_queue, consumer.dispatch_queue, session, session.enqueue_size_counter)
+            }
+          case _ =>
+        }
+      }
+
+      // Queue state has to be sampled on the queue's dispatch queue.
+      val queues = router.queues_by_store_id.values.toArray
+      var remaining = queues.length + 1
+      def sampled(values:Seq[Flow]) = {
+        // ignore the replies of an abandoned sample.
+        if( generation == sample_generation ) {
+          flows ++= values
+          remaining -= 1
+          if( remaining == 0 ) {
+            sampling_since = 0
+            assign(flows)
+          }
+        }
+      }
+      queues.foreach { queue =>
+        queue.dispatch_queue {
+          val values = ListBuffer[Flow]()
+          queue.inbound_sessions.foreach { session =>
+            values += Flow(session.producer.dispatch_queue, queue.dispatch_queue, session, session.enqueue_size_counter)
+          }
+          queue.all_subscriptions.valuesIterator.foreach { sub =>
+            values += Flow(queue.dispatch_queue, sub.consumer.dispatch_queue, sub, sub.session.enqueue_size_counter)
+          }
+          dispatch_queue {
+            sampled(values)
+          }
+        }
+      }
+      sampled(Nil)
+    }
+  }
+
+  def assign(flows:Seq[Flow]):Unit = {
+    val now = router.virtual_host.broker.now
+    val elapsed = now - last_sample_at
+    last_sample_at = now
+
+    // Convert the counters into rates.
+    val counters = HashMap[AnyRef, Long]()
+    val nodes = HashMap[DispatchQueue, Node]()
+    def node(queue:DispatchQueue) = nodes.getOrElseUpdate(queue, new Node(queue))
+    val edges = ListBuffer[(Node, Node, Long)]()
+    flows.foreach { flow =>
+      counters.put(flow.key, flow.size_counter)
+      for( last <- last_counters.get(flow.key) ) {
+        val rate = if( elapsed > 0 ) (flow.size_counter - last) * 1000 / elapsed else 0L
+        if( rate > 0 && flow.source!=null && flow.target!=null && (flow.source ne flow.target)
+            && (flow.source ne dispatch_queue) && (flow.target ne dispatch_queue) ) {
+          val source = node(flow.source)
+          val target = node(flow.target)
+          source.load += rate
+          target.load += rate
+          edges += ((source, target, rate))
+        }
+      }
+    }
+    last_counters = counters
+
+    val threads = Dispatch.getThreadQueues(DispatchPriority.DEFAULT)
+    val total_load = nodes.values.foldLeft(0L)(_ + _.load)
+    if( threads.length < 2 || total_load == 0 ) {
+      return
+    }
+    val fair_share = total_load / threads.length
+
+    // Merge the nodes connected by the heaviest flows first, as long as the
+    // merged group does not grow too far beyond it's fair share of the load.
+    nodes.values.foreach { n => n.group_load = n.load }
+    edges.sortBy(-_._3).foreach { case (source, target, rate) =>
+      val a = source.root
+      val b = target.root
+      if( (a ne b) && a.group_load + b.group_load <= fair_share * LOAD_SLACK ) {
+        b.parent = a
+        a.group_load += b.group_load
+      }
+    }
+
+    val groups = nodes.values.groupBy(_.root).toSeq.sortBy(-_._1.group_load)
+
+    // Assign the heaviest groups first.  Prefer keeping a group on the thread
+    // most of it's load is already on so that we don't needlessly move things.
+    val thread_loads = new Array[Long](threads.length)
+    def current_thread(queue:DispatchQueue) = threads.indexWhere(_ eq queue.getTargetQueue)
+    val rc = new RegroupStatusDTO
+    rc.timestamp = now
+    groups.foreach { case (root, members) =>
+      val load_by_thread = new Array[Long](threads.length)
+      members.foreach { n =>
+        val t = current_thread(n.queue)
+        if( t >= 0 ) {
+          load_by_thread(t) += n.load
+        }
+      }
+      val preferred = load_by_thread.indexOf(load_by_thread.max)
+      val thread = if( load_by_thread(preferred) > 0 && thread_loads(preferred) + root.group_load <= fair_share * LOAD_SLACK ) {
+        preferred
+      } else {
+        thread_loads.indexOf(thread_loads.min)
+      }
+      thread_loads(thread) += root.group_load
+
+      val group = new FlowGroupDTO
+      group.thread = thread
+      group.load = root.group_load
+      members.foreach { n =>
+        n.thread = thread
+        if( threads(thread) ne n.queue.getTargetQueue ) {
+          debug("regrouping %s onto thread %d", n.queue.getLabel, thread)
+          n.queue.setTargetQueue(threads(thread))
+          rc.moves += 1
+        }
+        group.members.add(n.queue.getLabel)
+      }
+      rc.groups.add(group)
+    }
+
+    edges.foreach { case (source, target, rate) =>
+      rc.total_rate += rate
+      if( source.thread != target.thread ) {
+        rc.cross_thread_rate += rate
+      }
+    }
+    thread_loads.foreach(rc.thread_loads.add(_))
+    rc.imbalance = thread_loads.max.toDouble * threads.length / total_load
+    status = rc
+  }
+
+}
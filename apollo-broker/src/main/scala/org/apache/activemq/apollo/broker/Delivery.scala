@@ -18,7 +18,7 @@ package org.apache.activemq.apollo.broker
 
 import _root_.org.fusesource.hawtdispatch._
 import org.fusesource.hawtbuf._
-import org.apache.activemq.apollo.filter.Filterable
+import org.apache.activemq.apollo.filter.{BooleanExpression, Filterable}
 import org.apache.activemq.apollo.broker.store.StoreUOW
 import org.apache.activemq.apollo.util.Log
 import java.util.concurrent.atomic.{AtomicReference, AtomicLong}
@@ -69,6 +69,15 @@ trait DeliveryConsumer extends Retained {
   def exclusive = false
   def dispatch_queue:DispatchQueue;
   def matches(message:Delivery):Boolean
+
+  /**
+   * The message selector which matches applies, if any.  Producers routing
+   * to many consumers evaluate the selectors together and then only call
+   * matches_ignoring_selector on the consumers whose selector matched.
+   */
+  def message_selector:BooleanExpression = null
+  def matches_ignoring_selector(message:Delivery):Boolean = matches(message)
+
   def connect(producer:DeliveryProducer):DeliverySession
   def is_persistent:Boolean
 }
@@ -225,6 +234,11 @@ class Delivery {
    */
   var retain:RetainAction = RetainIgnore
 
+  /**
+   * The System.nanoTime at which the producer sent the delivery if it
+   * was sampled for tracing, 0 otherwise.
+   */
+  var trace_received:Long = 0
 
   def copy() = (new Delivery).set(this)
 
@@ -237,6 +251,7 @@ class Delivery {
     storeLocator = other.storeLocator
     redeliveries = other.redeliveries
     retain = other.retain
+    trace_received = other.trace_received
     this
   }
 
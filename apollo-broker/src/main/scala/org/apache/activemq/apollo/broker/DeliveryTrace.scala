@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.dto.{TimeMetricDTO, DeliveryTraceDTO}
+
+/**
+ * <p>
+ * Holds the times, as reported by System.nanoTime, at which a sampled
+ * queue entry reached the stages of its path through the queue.  A
+ * stage which has not been reached is 0.
+ * </p>
+ */
+class DeliveryTrace(val received:Long) {
+  var enqueued = 0L
+  var stored = 0L
+  var swap_in_started = 0L
+  // The total time spent loading the entry back from the store.
+  var swap_in_time = 0L
+  var dispatched = 0L
+}
+
+/**
+ * <p>
+ * Aggregates the stage latencies of the sampled entries of a queue
+ * once they get acked.  The counters get reset every time the window
+ * is rolled and to_dto reports the last complete window.
+ * </p>
+ */
+class DeliveryTraceMetrics {
+
+  val route_latency = new TimeCounter
+  val store_latency = new TimeCounter
+  val swap_in_latency = new TimeCounter
+  val dispatch_latency = new TimeCounter
+  val consumer_latency = new TimeCounter
+  val total_latency = new TimeCounter
+
+  // the metrics of the last complete window.
+  var last:DeliveryTraceDTO = null
+
+  def record(trace:DeliveryTrace, acked:Long) = {
+    route_latency += trace.enqueued - trace.received
+    if( trace.stored != 0 ) {
+      store_latency += trace.stored - trace.enqueued
+    }
+    if( trace.swap_in_time != 0 ) {
+      swap_in_latency += trace.swap_in_time
+    }
+    if( trace.dispatched != 0 ) {
+      dispatch_latency += trace.dispatched - trace.enqueued
+      consumer_latency += acked - trace.dispatched
+    }
+    total_latency += acked - trace.received
+  }
+
+  /**
+   * Closes the current window and resets the counters.
+   *
+   * @return false if nothing was traced in the last window.
+   */
+  def roll:Boolean = {
+    last = if( total_latency.count == 0 ) {
+      null
+    } else {
+      import TimeMetricDTO.create
+      val rc = new DeliveryTraceDTO
+      rc.route_latency = create(route_latency(true))
+      rc.store_latency = create(store_latency(true))
+      rc.swap_in_latency = create(swap_in_latency(true))
+      rc.dispatch_latency = create(dispatch_latency(true))
+      rc.consumer_latency = create(consumer_latency(true))
+      rc.total_latency = create(total_latency(true))
+      rc
+    }
+    last != null
+  }
+
+  def to_dto:DeliveryTraceDTO = last
+}
@@ -40,6 +40,8 @@ object DestinationMetricsSupport {
     to.dequeue_item_counter += from.dequeue_item_counter
     to.dequeue_size_counter += from.dequeue_size_counter
     to.dequeue_ts = to.dequeue_ts max from.dequeue_ts
+    to.dequeue_latency = add_time_metrics(to.dequeue_latency, from.dequeue_latency)
+    to.trace = add_trace_metrics(to.trace, from.trace)
 
     to.producer_counter += from.producer_counter
     to.consumer_counter += from.consumer_counter
@@ -70,6 +72,49 @@ object DestinationMetricsSupport {
     to.swapped_in_size_max += from.swapped_in_size_max
   }
 
+  /**
+   * Combines two time metrics.  The percentiles of the result are
+   * computed from the merged histograms of both metrics.
+   */
+  def add_time_metrics(to:TimeMetricDTO, from:TimeMetricDTO):TimeMetricDTO = {
+    if( from==null || from.count==0 ) {
+      return to
+    }
+    if( to==null || to.count==0 ) {
+      return from
+    }
+    val histogram = new Histogram
+    histogram.add_sparse_array(to.histogram)
+    histogram.add_sparse_array(from.histogram)
+    val rc = new TimeMetricDTO()
+    rc.count = to.count + from.count
+    rc.total = to.total + from.total
+    rc.min = to.min min from.min
+    rc.max = to.max max from.max
+    rc.p50 = histogram.percentile(0.50) min rc.max
+    rc.p99 = histogram.percentile(0.99) min rc.max
+    rc.p999 = histogram.percentile(0.999) min rc.max
+    rc.histogram = histogram.to_sparse_array
+    rc
+  }
+
+  def add_trace_metrics(to:DeliveryTraceDTO, from:DeliveryTraceDTO):DeliveryTraceDTO = {
+    if( from==null ) {
+      return to
+    }
+    if( to==null ) {
+      return from
+    }
+    val rc = new DeliveryTraceDTO
+    rc.route_latency = add_time_metrics(to.route_latency, from.route_latency)
+    rc.store_latency = add_time_metrics(to.store_latency, from.store_latency)
+    rc.swap_in_latency = add_time_metrics(to.swap_in_latency, from.swap_in_latency)
+    rc.dispatch_latency = add_time_metrics(to.dispatch_latency, from.dispatch_latency)
+    rc.consumer_latency = add_time_metrics(to.consumer_latency, from.consumer_latency)
+    rc.total_latency = add_time_metrics(to.total_latency, from.total_latency)
+    rc
+  }
+
 }
 
 /**
@@ -722,9 +767,20 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
   class QueueDomain extends Domain[Queue] {
 
+    // holds the additional partitions of the partitioned queues by queue id
+    val partitions_by_id = HashMap[String, HashMap[Int, Queue]]()
+
     def bind(queue:Queue) = {
       val path = queue.address.path
       assert( !PathParser.containsWildCards(path) )
+      // Partitions get created before the queue is added so that matching
+      // producers and consumers get spread over them from the start.  On
+      // startup, we wait for the stored partitions to be restored first.
+      if( service_state.is_started ) {
+        create_partitions(queue)
+      } else {
+        attach_partitions(queue)
+      }
       add_destination(path, queue)
 
       import OptionSupport._
@@ -747,6 +803,44 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
       }
     }
 
+    def bind_partition(partition:Queue, index:Int) = {
+      partitions_by_id.getOrElseUpdate(partition.id, HashMap()).put(index, partition)
+      destination_by_id.get(partition.id).foreach(attach_partitions(_))
+    }
+
+    def unbind_partition(partition:Queue, index:Int) = {
+      partitions_by_id.get(partition.id).foreach { partitions =>
+        if( partitions.get(index) == Some(partition) ) {
+          partitions.remove(index)
+          if( partitions.isEmpty ) {
+            partitions_by_id.remove(partition.id)
+          }
+        }
+      }
+      destination_by_id.get(partition.id).foreach(attach_partitions(_))
+    }
+
+    def partitions_of(queue:Queue):Seq[Queue] = {
+      partitions_by_id.get(queue.id).map(_.toSeq.sortBy(_._1).map(_._2)).getOrElse(Nil)
+    }
+
+    def attach_partitions(queue:Queue) = queue.attach_partitions(partitions_of(queue))
+
+    /**
+     * Creates any partitions a partitioned queue is missing.
+     */
+    def create_partitions(queue:Queue) = {
+      import OptionSupport._
+      val count = queue.config.partitions.getOrElse(1)
+      if( count > 1 && !queue.config.mirrored.getOrElse(false) ) {
+        val existing = partitions_by_id.getOrElse(queue.id, HashMap[Int, Queue]())
+        for( i <- 1 until count if !existing.contains(i) ) {
+          _create_queue(QueuePartitionBinding(queue.address, i))
+        }
+      }
+      attach_partitions(queue)
+    }
+
     def destroy_destination(address: DestinationAddress, security: SecurityContext): Unit = {
       val matches = get_destination_matches(address.path)
       matches.foreach { queue =>
@@ -893,6 +987,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
         // explicitly listed in the config.
 
         create_configure_destinations
+
+        // and that the partitioned queues have all their partitions.
+        local_queue_domain.destinations.foreach(local_queue_domain.create_partitions(_))
         on_completed.run()
       }
     }
@@ -944,44 +1041,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     }
   }
 
-  def connection_regroup = {
-    // this should really be much more fancy.  It should look at the messaging
-    // rates between producers and consumers, look for natural data flow partitions
-    // and then try to equally divide the load over the available processing
-    // threads/cores.
-
-
-
-    // For the topics, just collocate the producers onto the first consumer's thread.
-    local_topic_domain.destinations.foreach { node =>
-
-      node.consumers.keys.headOption.foreach{ consumer =>
-        node.producers.keys.foreach { r=>
-          r.collocate(consumer.dispatch_queue)
-        }
-      }
-    }
-
+  val connection_regrouper = new ConnectionRegrouper(this)
 
-    local_queue_domain.destinations.foreach { queue=>
-      queue.dispatch_queue {
-
-        // Collocate the queue's with the first consumer
-        // TODO: change this so it collocates with the fastest consumer.
-
-        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
-          queue.collocate( consumer.dispatch_queue )
-        }
-
-        // Collocate all the producers with the queue..
-
-        queue.inbound_sessions.foreach { session =>
-          session.producer.collocate( queue.dispatch_queue )
-        }
-      }
-
-    }
-  }
+  def connection_regroup = connection_regrouper.regroup
 
   /////////////////////////////////////////////////////////////////////////////
   //
@@ -1279,6 +1341,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
 
   def _destroy_queue(queue: Queue) {
+    if( queue.binding.isInstanceOf[QueueDomainQueueBinding] ) {
+      local_queue_domain.partitions_of(queue).foreach(_destroy_queue(_))
+    }
     queue.stop(dispatch_queue.runnable{
 
       queue.binding.unbind(this, queue)
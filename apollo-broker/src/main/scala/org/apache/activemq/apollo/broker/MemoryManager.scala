@@ -0,0 +1,196 @@
+/**
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import org.apache.activemq.apollo.util.Log
+import collection.JavaConversions._
+
+object MemoryManager extends Log {
+
+  /**
+   * Once the swapped in messages of all the queues which are not acquired
+   * use more than this fraction of the memory limit, the queues start swapping out
+   * aggressively and stop accepting new messages into their tail buffers..
+   */
+  val HIGH_WATERMARK = 0.9
+
+  /**
+   * .. until the memory usage drops back below this fraction of the limit.
+   */
+  val LOW_WATERMARK = 0.7
+
+  /**
+   * The fraction of the memory limit that gets handed out to the queue
+   * tail buffers.  The rest is left for the consumer prefetch.
+   */
+  val TAIL_BUFFER_RATIO = 0.5
+
+  /**
+   * Tail buffer size that even idle queues get to keep.
+   */
+  val MIN_TAIL_BUFFER = 32*1024
+}
+
+/**
+ * <p>
+ * Coordinates the memory used by the swapped in messages of all the
+ * queues of a broker.  It tracks the total size of the loaded messages
+ * and once that goes over the high watermark, it has all the queues swap
+ * out what they can and stop accepting new messages until the usage drops
+ * below the low watermark.  It also periodically divides the tail buffer
+ * budget between the queues based on how fast messages are flowing
+ * through them, so that idle queues don't hoard memory that busy queues
+ * could use.
+ * </p>
+ */
+class MemoryManager {
+  import MemoryManager._
+
+  /**
+   * The max amount of memory the swapped in messages should use, or -1 if
+   * the memory usage is not limited.
+   */
+  @volatile
+  var limit = -1L
+
+  val used = new AtomicLong
+
+  /**
+   * The part of the used memory held by acquired messages.  It can't be
+   * swapped out until the consumers ack, so it's left out of the
+   * watermark checks.
+   */
+  val pinned_size = new AtomicLong
+
+  /**
+   * Set while the swappable memory usage is between the high and the low
+   * watermark.  Only changed while holding the manager's lock.
+   */
+  @volatile
+  var swapping = false
+
+  val queues = java.util.Collections.newSetFromMap(new ConcurrentHashMap[Queue, java.lang.Boolean]())
+
+  def register(queue:Queue) = queues.add(queue)
+  def unregister(queue:Queue) = queues.remove(queue)
+
+  def allocated(size:Int):Unit = {
+    used.addAndGet(size)
+    check_watermarks
+  }
+
+  def pinned(size:Int):Unit = {
+    pinned_size.addAndGet(size)
+    check_watermarks
+  }
+
+  def swappable = used.get - pinned_size.get
+
+  private def should_swap(value:Long) = if( swapping ) {
+    value >= limit * LOW_WATERMARK
+  } else {
+    value > limit * HIGH_WATERMARK
+  }
+
+  /**
+   * Cheap unlocked check first, the transition itself is decided again
+   * under the lock with the current usage so that concurrent allocations
+   * and frees can't leave the flag in the wrong state.
+   */
+  def check_watermarks:Unit = {
+    if( limit > 0 && should_swap(swappable) != swapping ) {
+      this.synchronized {
+        val value = swappable
+        if( limit > 0 && should_swap(value) != swapping ) {
+          swapping = !swapping
+          if( swapping ) {
+            info("Swapped in messages are using %,d of the %,d byte memory limit, swapping out", value, limit)
+          }
+          notify_queues
+        }
+      }
+    }
+  }
+
+  def notify_queues = queues.foreach { queue =>
+    queue.dispatch_queue {
+      queue.memory_pressure_changed
+    }
+  }
+
+  /**
+   * Divides the tail buffer budget between the queues.  Every queue gets a
+   * minimum share and the rest is handed out in proportion to the rate
+   * at which messages are flowing though the queues, but never more than a
+   * queue's configured tail buffer.
+   */
+  def rebalance:Unit = {
+    val list = queues.toArray(new Array[Queue](0))
+    val grants = new Array[Int](list.length)
+    if( limit <= 0 ) {
+      for( i <- 0 until list.length ) {
+        grants(i) = list(i).tune_tail_buffer
+      }
+      this.synchronized {
+        if( swapping ) {
+          swapping = false
+          notify_queues
+        }
+      }
+    } else if( !list.isEmpty ) {
+      var budget = (limit * TAIL_BUFFER_RATIO).toLong
+      val min = MIN_TAIL_BUFFER.toLong.min(budget / list.length).toInt
+      for( i <- 0 until list.length ) {
+        grants(i) = min.min(list(i).tune_tail_buffer)
+        budget -= grants(i)
+      }
+
+      // keep handing out the remaining budget in proportion to the demand
+      // until it runs out or all the queues are at their configured max.
+      var unsatisfied = (0 until list.length).filter(i=> list(i).memory_demand > 0 && grants(i) < list(i).tune_tail_buffer)
+      while( budget > 0 && !unsatisfied.isEmpty ) {
+        val total_demand = unsatisfied.foldLeft(0L)((sum, i)=> sum + list(i).memory_demand)
+        var handed_out = 0L
+        unsatisfied.foreach { i =>
+          val share = (budget * (list(i).memory_demand.toDouble / total_demand)).toLong
+          val grant = (grants(i) + share).min(list(i).tune_tail_buffer).toInt
+          handed_out += grant - grants(i)
+          grants(i) = grant
+        }
+        budget -= handed_out
+        if( handed_out == 0 ) {
+          budget = 0
+        }
+        unsatisfied = unsatisfied.filter(i=> grants(i) < list(i).tune_tail_buffer)
+      }
+    }
+
+    for( i <- 0 until list.length ) {
+      val queue = list(i)
+      val grant = grants(i)
+      if( grant != queue.tail_buffer_size ) {
+        queue.dispatch_queue {
+          queue.resize_tail_buffer(grant)
+        }
+      }
+    }
+  }
+
+}
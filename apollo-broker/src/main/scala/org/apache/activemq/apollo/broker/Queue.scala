@@ -20,7 +20,7 @@ import java.util.concurrent.TimeUnit
 
 import org.fusesource.hawtdispatch._
 import protocol.ProtocolFactory
-import collection.mutable.ListBuffer
+import collection.mutable.{HashSet, HashMap, ListBuffer, LinkedHashSet}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.util.list._
@@ -36,19 +36,134 @@ import org.fusesource.hawtbuf.UTF8Buffer
 object Queue extends Log {
   val subcsription_counter = new AtomicInteger(0)
 
-  class MemorySpace {
+  /**
+   * The default priority above which messages get tracked in the
+   * priority lanes when priority dispatch is enabled.
+   */
+  val PRIORITY_LANE_THRESHOLD = 4
+  val PRIORITY_LANE_COUNT = 10
+
+  /**
+   * How often, in seconds, the reported latency metrics get replaced with
+   * the timings collected since the last time.
+   */
+  val LATENCY_WINDOW = 10
+
+  /**
+   * Enqueue times within this many nanoseconds of the last sample share it.
+   */
+  val ENQUEUE_TIME_RESOLUTION = 1000*1000L
+
+  /**
+   * Samples the times at which a queue's entries got enqueued, at most one
+   * per ENQUEUE_TIME_RESOLUTION, so that the time an entry was enqueued at
+   * can be looked up by it's seq instead of keeping a time stamp on every
+   * entry.  The looked up time is at most ENQUEUE_TIME_RESOLUTION early.
+   */
+  class EnqueueTimes {
+    var seqs = new Array[Long](16)
+    var times = new Array[Long](16)
+    var start = 0
+    var end = 0
+
+    def enqueued(seq:Long, time:Long):Unit = {
+      if( start == end || time - times(end-1) >= ENQUEUE_TIME_RESOLUTION ) {
+        if( end == seqs.length ) {
+          // compact or grow.
+          val size = end - start
+          val capacity = if( size*2 <= seqs.length ) seqs.length else seqs.length*2
+          val new_seqs = new Array[Long](capacity)
+          val new_times = new Array[Long](capacity)
+          System.arraycopy(seqs, start, new_seqs, 0, size)
+          System.arraycopy(times, start, new_times, 0, size)
+          seqs = new_seqs
+          times = new_times
+          start = 0
+          end = size
+        }
+        seqs(end) = seq
+        times(end) = time
+        end += 1
+      }
+    }
+
+    /**
+     * @return the System.nanoTime the entry got enqueued at or 0 if it
+     *         was not sampled, like when it was restored from the store.
+     */
+    def time_of(seq:Long):Long = {
+      // find the last sample at or before the seq.
+      var low = start
+      var high = end - 1
+      var rc = 0L
+      while( low <= high ) {
+        val mid = (low + high) >>> 1
+        if( seqs(mid) <= seq ) {
+          rc = times(mid)
+          low = mid + 1
+        } else {
+          high = mid - 1
+        }
+      }
+      rc
+    }
+
+    /**
+     * Drops the samples which only cover entries before the seq.
+     */
+    def prune(seq:Long):Unit = {
+      while( end - start > 1 && seqs(start+1) <= seq ) {
+        start += 1
+      }
+    }
+  }
+
+  class MemorySpace(var manager:MemoryManager=null) {
     var items = 0
     var size = 0
     var size_max = 0
+    // the part of the size used by acquired entries which can't be swapped out.
+    var pinned = 0
 
     def +=(delivery:Delivery) = {
       items += 1
       size += delivery.size
+      if( manager!=null ) {
+        manager.allocated(delivery.size)
+      }
     }
 
     def -=(delivery:Delivery) = {
       items -= 1
       size -= delivery.size
+      if( manager!=null ) {
+        manager.allocated(-delivery.size)
+      }
+    }
+
+    def pin(delivery:Delivery) = {
+      pinned += delivery.size
+      if( manager!=null ) {
+        manager.pinned(delivery.size)
+      }
+    }
+
+    def unpin(delivery:Delivery) = {
+      pinned -= delivery.size
+      if( manager!=null ) {
+        manager.pinned(-delivery.size)
+      }
+    }
+
+    /**
+     * Stops accounting for the space in the memory manager.
+     */
+    def detach = {
+      if( manager!=null ) {
+        manager.pinned(-pinned)
+        manager.allocated(-size)
+        manager = null
+      }
     }
   }
 
@@ -68,6 +183,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   val resource_kind = binding match {
     case x:DurableSubscriptionQueueBinding=> DurableSubKind
     case x:QueueDomainQueueBinding=> QueueKind
+    case x:QueuePartitionBinding=> QueueKind
     case _ => OtherKind
   }
 
@@ -76,6 +192,22 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var all_subscriptions = Map[DeliveryConsumer, Subscription]()
   var exclusive_subscriptions = ListBuffer[Subscription]()
 
+  /**
+   * The queues the entries of a partitioned queue are sharded across.  The
+   * first partition is always this queue.  Each partition has it's own
+   * dispatch queue and store sequence.  Only updated from the router's
+   * dispatch queue.
+   */
+  @volatile
+  var partitions = Array[Queue](this)
+
+  // Tracks which partition a producer was connected to, the consumers
+  // in the order they were bound and the consumers which are currently
+  // bound to the partitions.  Only accessed from the router's dispatch queue.
+  val partition_producers = HashMap[BindableDeliveryProducer, Queue]()
+  val partition_consumers = LinkedHashSet[DeliveryConsumer]()
+  val partition_bound = HashSet[DeliveryConsumer]()
+
   def filter = binding.message_filter
 
   override val dispatch_queue: DispatchQueue = createQueue(id);
@@ -135,6 +267,18 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
    *  The max memory to allow this queue to grow to.
    */
   var tune_quota = -1L
+
+  /**
+   * Should messages with a elevated priority get dispatched
+   * ahead of the rest of the queue?
+   */
+  var tune_priority_dispatch = false
+
+  /**
+   * Messages with a priority above this value get tracked in
+   * the priority lanes.
+   */
+  var tune_priority_threshold = PRIORITY_LANE_THRESHOLD
   
   /**
    *  The message delivery rate (in bytes/sec) at which
@@ -163,6 +307,19 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var dequeue_item_counter = 0L
   var dequeue_size_counter = 0L
   var dequeue_ts = now;
+  val dequeue_latency_counter = new TimeCounter
+  // the dequeue latencies of the last LATENCY_WINDOW.
+  var dequeue_latency = TimeMetric(0, 0, 0, 0)
+  var latency_window_ticks = 0
+  val enqueue_times = new EnqueueTimes
+  // the traces of the sampled entries by seq, only a few entries get sampled.
+  val delivery_traces = new java.util.TreeMap[java.lang.Long, DeliveryTrace]()
+  // only allocated while sampled entries are getting acked.
+  var trace_metrics:DeliveryTraceMetrics = null
+
+  def delivery_trace(entry:QueueEntry):DeliveryTrace = {
+    if( delivery_traces.isEmpty ) null else delivery_traces.get(entry.seq)
+  }
 
   var nack_item_counter = 0L
   var nack_size_counter = 0L
@@ -178,8 +335,31 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var swapping_in_size = 0
   var swapping_out_size = 0
 
-  val producer_swapped_in = new MemorySpace
-  val consumer_swapped_in = new MemorySpace
+  def memory_manager = virtual_host.broker.memory_manager
+
+  val producer_swapped_in = new MemorySpace(memory_manager)
+  val consumer_swapped_in = new MemorySpace(memory_manager)
+
+  /**
+   * The configured tail buffer size.
+   */
+  @volatile
+  var tune_tail_buffer = 0
+
+  /**
+   * The part of the tail buffer which the memory manager
+   * currently lets the queue use.
+   */
+  @volatile
+  var tail_buffer_size = 0
+
+  /**
+   * How fast (in bytes/sec) messages are flowing though the queue.  Used
+   * by the memory manager to divide the memory between the queues.
+   */
+  @volatile
+  var memory_demand = 0L
+  var enqueue_size_at_last_interval = 0L
 
   var swap_out_item_counter = 0L
   var swap_out_size_counter = 0L
@@ -217,9 +397,15 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   def configure(update:QueueDTO) = {
     def mem_size(value:String, default:String) = MemoryPropertyEditor.parse(Option(value).getOrElse(default)).toInt
 
-    producer_swapped_in.size_max += mem_size(update.tail_buffer, "640k") - Option(config).map{ config=>
-      mem_size(config.tail_buffer, "640k")
-    }.getOrElse(0)
+    tune_tail_buffer = mem_size(update.tail_buffer, "640k")
+    if( memory_manager.limit <= 0 ) {
+      resize_tail_buffer(tune_tail_buffer)
+    } else if( tail_buffer_size == 0 ) {
+      // the memory manager hands out more once it sees the queue getting used.
+      resize_tail_buffer(tune_tail_buffer.min(MemoryManager.MIN_TAIL_BUFFER))
+    } else {
+      resize_tail_buffer(tail_buffer_size.min(tune_tail_buffer))
+    }
 
     tune_persistent = virtual_host.store !=null && update.persistent.getOrElse(true)
     tune_swap = tune_persistent && update.swap.getOrElse(true)
@@ -228,12 +414,14 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     tune_catchup_enqueue_rate = mem_size(update.catchup_enqueue_rate,"-1")
     tune_max_enqueue_rate = mem_size(update.max_enqueue_rate,"-1")
     tune_quota = mem_size(update.quota,"-1")
+    tune_priority_dispatch = update.priority_dispatch.getOrElse(false)
+    tune_priority_threshold = update.priority_dispatch_threshold.getOrElse(PRIORITY_LANE_THRESHOLD)
 
     auto_delete_after = update.auto_delete_after.getOrElse(30)
     if( auto_delete_after!= 0 ) {
       // we don't auto delete explicitly configured queues,
       // non destination queues, or mirrored queues.
-      if( update.mirrored.getOrElse(false) || !binding.isInstanceOf[QueueDomainQueueBinding] || !LocalRouter.is_wildcard_config(update) ) {
+      if( update.mirrored.getOrElse(false) || !binding.isInstanceOf[QueueDomainQueueBinding] || !LocalRouter.is_wildcard_config(update) || update.partitions.getOrElse(1) > 1 ) {
         auto_delete_after = 0
       }
     }
@@ -252,6 +440,10 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     rc.dequeue_item_counter = this.dequeue_item_counter
     rc.dequeue_size_counter = this.dequeue_size_counter
     rc.dequeue_ts = this.dequeue_ts
+    rc.dequeue_latency = TimeMetricDTO.create(dequeue_latency)
+    if( trace_metrics!=null ) {
+      rc.trace = trace_metrics.to_dto
+    }
 
     rc.nack_item_counter = this.nack_item_counter
     rc.nack_size_counter = this.nack_size_counter
@@ -426,6 +618,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   }
 
   protected def _start(on_completed: Runnable) = {
+    memory_manager.register(this)
     restore_from_store {
 
 
@@ -455,7 +648,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
     // Disconnect the producers..
     producers.foreach { producer =>
-      disconnect(producer)
+      disconnect_local(producer)
     }
     // Close all the subscriptions..
     all_subscriptions.values.toArray.foreach { sub:Subscription =>
@@ -463,6 +656,9 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
 
     trigger_swap
+    memory_manager.unregister(this)
+    producer_swapped_in.detach
+    consumer_swapped_in.detach
 
     stop_listener_waiting_for_flush = on_completed
     if( swapping_out_size==0 ) {
@@ -503,6 +699,23 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     consumer_swapped_in.size_max += amount
   }
 
+  def resize_tail_buffer(size:Int) = might_unfill {
+    producer_swapped_in.size_max += size - tail_buffer_size
+    tail_buffer_size = size
+  }
+
+  /**
+   * Called when the memory manager starts or stops swapping.
+   */
+  def memory_pressure_changed = {
+    if( service_state.is_started ) {
+      trigger_swap
+      if( !messages.full ) {
+        messages.refiller.run
+      }
+    }
+  }
+
   object messages extends Sink[Delivery] {
 
     var refiller: Runnable = null
@@ -510,9 +723,10 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     def is_quota_exceeded = (tune_quota >= 0 && queue_size > tune_quota)
     def is_enqueue_throttled = (enqueues_remaining!=null && enqueues_remaining.get() <= 0)
     def is_enqueue_buffer_maxed = (producer_swapped_in.size >= producer_swapped_in.size_max)
+    def is_memory_exhausted = memory_manager.swapping && producer_swapped_in.size > 0
 
     def full = if( service_state.is_started ) {
-      is_enqueue_buffer_maxed || is_enqueue_throttled || is_quota_exceeded
+      is_enqueue_buffer_maxed || is_enqueue_throttled || is_quota_exceeded || is_memory_exhausted
     } else if( service_state.is_starting) {
       true
     } else {
@@ -567,7 +781,16 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           entry.dispatch
         }
 
-        if( !consumers_keeping_up_historically  ) {
+        if( entry.in_priority_lane ) {
+          // skip ahead of the backlog to any sub that has room for it.
+          dispatch_priority_entry(entry)
+        }
+
+        if( entry.in_priority_lane && !all_subscriptions.isEmpty && producer_swapped_in.size <= producer_swapped_in.size_max ) {
+          // Keep it in memory while it fits in the tail buffer, it will get
+          // dispatched ahead of the rest of the queue as soon as a sub has
+          // room for it.
+        } else if( !consumers_keeping_up_historically  ) {
           entry.swap(true)
         } else if( entry.as_loaded.is_acquired && persisted) {
           // If the message as dispatched and it's marked to get persisted anyways,
@@ -599,14 +822,14 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   def expired(entry:QueueEntry, dequeue:Boolean=true):Unit = {
     if(dequeue) {
       might_unfill {
-        dequeue_item_counter += 1
+        dequeue_item_counter += entry.count
         dequeue_size_counter += entry.size
         dequeue_ts = now
       }
     }
 
     expired_ts = now
-    expired_item_counter += 1
+    expired_item_counter += entry.count
     expired_size_counter += entry.size
   }
 
@@ -653,132 +876,345 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   var keep_up_delivery_rate = 0L
   
-  def swap_messages:Unit = {
-    dispatch_queue.assertExecuting()
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Swap bookkeeping.  Rather than scanning every entry in the queue,
+  // swap_messages only visits the entries that may need attention:
+  // the loaded entries (which sit around the subscription cursors and
+  // the producer tail), the entries which were prefetched, the entries
+  // which recently got swapped out and the entries which are due to
+  // expire, which are tracked in a timing wheel.
+  //
+  /////////////////////////////////////////////////////////////////////
 
-    if( !service_state.is_started )
-      return
+  // Entries in the Loaded state.
+  val loaded_entries = new java.util.HashSet[QueueEntry]()
 
-    var cur = entries.getHead
-    while( cur!=null ) {
+  // Entries flagged as prefetched since the last swap_messages run.
+  var prefetched_entries = ListBuffer[QueueEntry]()
 
-      // reset the prefetch flags and handle expiration...
-      cur.prefetched = false
-      val next = cur.getNext
+  // Individually swapped entries which may be combined into swapped ranges.
+  var swapped_entries = ListBuffer[QueueEntry]()
+
+  // Entries which have an expiration.
+  val expiration_index = new TimerWheel[QueueEntry](100, now)
 
-      // handle expiration...
-      if( cur.expiration != 0 && cur.expiration <= now ) {
-        cur.state match {
-          case x:QueueEntry#SwappedRange =>
+  def prefetch(entry:QueueEntry) = {
+    if( !entry.prefetched ) {
+      entry.prefetched = true
+      prefetched_entries += entry
+    }
+  }
+
+  def expiration_index_add(entry:QueueEntry, deadline:Long):Unit = {
+    if( entry.expiration_timer == null && deadline != 0 ) {
+      entry.expiration_timer = expiration_index.add(entry, deadline)
+    }
+  }
+
+  def expiration_index_add(entry:QueueEntry):Unit = expiration_index_add(entry, entry.expiration)
+
+  def expiration_index_remove(entry:QueueEntry) = {
+    if( entry.expiration_timer != null ) {
+      expiration_index.remove(entry.expiration_timer)
+      entry.expiration_timer = null
+    }
+  }
+
+  def expiration_index_update(entry:QueueEntry) = {
+    if( entry.expiration_timer != null && entry.expiration_timer.getDeadline != entry.expiration ) {
+      expiration_index_remove(entry)
+      expiration_index_add(entry)
+    }
+  }
+
+  /**
+   * The wheel fires on tick boundaries and the entry's expiration may
+   * have changed since it was indexed, so check the entry itself.
+   */
+  def is_expired(entry:QueueEntry) = entry.expiration != 0 && entry.expiration <= now
+
+  def expire_entries = {
+    val due = new java.util.ArrayList[QueueEntry]()
+    expiration_index.advance(now, due)
+    val i = due.iterator
+    while( i.hasNext ) {
+      val cur = i.next
+      cur.expiration_timer = null
+      cur.state match {
+        case x:QueueEntry#SwappedRange =>
+          if( x.loading ) {
+            // the loaded entries get indexed individually.
+          } else if( x.max_expiration != 0 && x.max_expiration <= now ) {
+            // Every message in the range has expired, drop it
+            // without loading it from the store.
+            expired(cur)
+            x.remove
+          } else if( x.max_expiration != 0 ) {
+            // All the messages in the range expire.. wait for the last
+            // one to expire instead of loading the range multiple times.
+            expiration_index_add(cur, x.max_expiration)
+          } else {
             // load the range to expire the messages in it.
             cur.load(null)
-          case x:QueueEntry#Swapped =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !x.is_acquired ) {
-              expired(cur)
-              x.remove
-            }
-          case x:QueueEntry#Loaded =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !x.is_acquired ) {
-              expired(cur)
-              x.remove
+          }
+        case x:QueueEntry#Swapped =>
+          // remove the expired message if it has not been
+          // acquired.
+          if( !is_expired(cur) ) {
+            expiration_index_add(cur)
+          } else if( !x.is_acquired ) {
+            expired(cur)
+            x.remove
+          }
+        case x:QueueEntry#Loaded =>
+          // remove the expired message if it has not been
+          // acquired.
+          if( !is_expired(cur) ) {
+            expiration_index_add(cur)
+          } else if( !x.is_acquired ) {
+            expired(cur)
+            x.remove
+          }
+        case _ =>
+      }
+    }
+  }
+
+  /**
+   * Combines the recently swapped out entries with their neighbours
+   * into swapped ranges.
+   */
+  def combine_swapped_entries = {
+    val candidates = swapped_entries
+    swapped_entries = ListBuffer[QueueEntry]()
+
+    var combine_counter = 0;
+    candidates.foreach { cur =>
+      if( cur.isLinked && cur.is_swapped ) {
+        if( cur.prefetched || cur.is_acquired || cur.is_loading || cur.in_priority_lane ) {
+          // it's still needed.. try again later.
+          swapped_entries += cur
+        } else {
+          if( cur.can_combine_with_prev ) {
+            cur.getPrevious.as_swapped_range.combineNext
+            combine_counter += 1
+          } else if( near_subscription(cur) ) {
+            // the subscription will get to it soon.. try again later.
+            swapped_entries += cur
+          } else {
+            cur.swapped_range
+            // pull in the swapped neighbours that follow.
+            while( cur.getNext!=null && !cur.getNext.prefetched && cur.getNext.can_combine_with_prev ) {
+              cur.as_swapped_range.combineNext
             }
-          case _ =>
+            combine_counter += 1
+          }
         }
       }
-      cur = next
     }
+    trace("combined %d entries", combine_counter)
+  }
+
+  /**
+   * Is the entry within tune_swap_range_size entries past a
+   * subscription's prefetched entries?
+   */
+  def near_subscription(entry:QueueEntry):Boolean = {
+    var distance_from_sub = 0
+    var cur = entry.getPrevious
+    while( cur!=null && distance_from_sub < tune_swap_range_size ) {
+      if( cur.prefetched && !cur.in_priority_lane ) {
+        return true
+      }
+      distance_from_sub += 1
+      cur = cur.getPrevious
+    }
+    false
+  }
+
+  def swap_messages:Unit = {
+    dispatch_queue.assertExecuting()
+
+    if( !service_state.is_started )
+      return
+
+    // reset the prefetch flags and handle expiration...
+    prefetched_entries.foreach( _.prefetched = false )
+    prefetched_entries = ListBuffer[QueueEntry]()
+    expire_entries
 
     // Set the prefetch flags
     consumers_keeping_up = false
     all_subscriptions.valuesIterator.foreach{ x=>
       x.refill_prefetch
     }
+    prefetch_priority_lanes
     consumers_keeping_up = consumers_keeping_up && delivery_rate > tune_fast_delivery_rate
     if( consumers_keeping_up ) {
       consumers_keeping_up_counter += 1
       consumers_keeping_up_historically = true
     }
 
-    // swap out messages.
-    cur = entries.getHead
-    while( cur!=null ) {
-      val next = cur.getNext
-      if( cur.prefetched ) {
-        // Prefteched entries need to get loaded..
+    // Prefteched entries need to get loaded..
+    prefetched_entries.foreach { cur =>
+      if( cur.isLinked ) {
         cur.load(consumer_swapped_in)
-      } else {
-        // This is a non-prefetched entry.. entires ahead and behind the
-        // consumer subscriptions.
-        val loaded = cur.as_loaded
-        if( loaded!=null ) {
-          // It's in memory.. perhaps we need to swap it out..
-          if(!consumers_keeping_up_historically) {
-            // Swap out ASAP if consumers are not keeping up..
-            cur.swap(true)
+      }
+    }
+
+    // swap out messages. copy since swapping may change the set.
+    val loaded = loaded_entries.toArray(new Array[QueueEntry](loaded_entries.size))
+    loaded.foreach { cur =>
+      // This is a non-prefetched entry.. entires ahead and behind the
+      // consumer subscriptions.
+      if( !cur.prefetched && cur.is_loaded ) {
+        // It's in memory.. perhaps we need to swap it out..
+        if(!consumers_keeping_up_historically || memory_manager.swapping) {
+          // Swap out ASAP if consumers are not keeping up or we are low on memory..
+          cur.swap(true)
+        } else {
+          // Consumers seem to be keeping up.. so we have to be more selective
+          // about what gets swapped out..
+
+          if (cur.memory_space eq producer_swapped_in ) {
+            // Entry will be used soon..
+            cur.load(producer_swapped_in)
+          } else if ( cur.is_acquired ) {
+            // Entry was just used...
+            cur.load(consumer_swapped_in)
           } else {
-            // Consumers seem to be keeping up.. so we have to be more selective
-            // about what gets swapped out..
-
-            if (cur.memory_space eq producer_swapped_in ) {
-              // Entry will be used soon..
-              cur.load(producer_swapped_in)
-            } else if ( cur.is_acquired ) {
-              // Entry was just used...
-              cur.load(consumer_swapped_in)
-//              cur.swap(false)
-            } else {
-              // Does not look to be anywhere close to the consumer.. so get
-              // rid of it asap.
-              cur.swap(true)
-            }
+            // Does not look to be anywhere close to the consumer.. so get
+            // rid of it asap.
+            cur.swap(true)
           }
         }
       }
-      cur = next
-    }                               
-
+    }
 
     // Combine swapped items into swapped ranges
     if( individual_swapped_items > tune_swap_range_size*2 ) {
+      combine_swapped_entries
+    } else if( swapped_entries.size > (individual_swapped_items*2).max(tune_swap_range_size) ) {
+      // drop the stale candidates so the list does not grow unbounded.
+      swapped_entries = swapped_entries.filter(x=> x.isLinked && x.is_swapped)
+    }
 
-      var distance_from_sub = tune_swap_range_size;
-      var cur = entries.getHead
-      var combine_counter = 0;
+    if(!messages.full) {
+      messages.refiller.run
+    }
 
-      while( cur!=null ) {
+  }
 
-        // get the next now.. since cur may get combined and unlinked
-        // from the entry list.
-        val next = cur.getNext
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Priority dispatch lanes.  Non-acquired entries with an elevated
+  // priority are indexed by priority and seq so that subscriptions
+  // can pick them up ahead of the rest of the queue.
+  //
+  /////////////////////////////////////////////////////////////////////
 
-        if( cur.prefetched ) {
-          distance_from_sub = 0
-        } else {
-          distance_from_sub += 1
-          if( cur.can_combine_with_prev ) {
-            cur.getPrevious.as_swapped_range.combineNext
-            combine_counter += 1
-          } else {
-            if( cur.is_swapped && !cur.is_acquired && distance_from_sub > tune_swap_range_size ) {
-              cur.swapped_range
-              combine_counter += 1
-            }
-          }
+  val priority_lanes = Array.fill(PRIORITY_LANE_COUNT)(new java.util.TreeMap[java.lang.Long, QueueEntry]())
+  var priority_lane_items = 0
 
+  def priority_lane_add(entry:QueueEntry) = {
+    if( tune_priority_dispatch && !entry.in_priority_lane && entry.priority > tune_priority_threshold ) {
+      priority_lanes(entry.priority.toInt.min(PRIORITY_LANE_COUNT-1)).put(entry.seq, entry)
+      entry.in_priority_lane = true
+      priority_lane_items += 1
+    }
+  }
+
+  def priority_lane_remove(entry:QueueEntry) = {
+    if( entry.in_priority_lane ) {
+      priority_lanes(entry.priority.toInt.min(PRIORITY_LANE_COUNT-1)).remove(entry.seq)
+      entry.in_priority_lane = false
+      priority_lane_items -= 1
+    }
+  }
+
+  def has_consumer_credit = all_subscriptions.valuesIterator.exists(sub=> !sub.browser && !sub.full)
+
+  /**
+   * Hands out the entries in the priority lanes, highest priority first,
+   * to the subscriptions that have room for them.  Swapped entries get
+   * loaded so that they can be dispatched once they arrive.  Stops at the
+   * first loaded entry which no subscription can take.
+   */
+  def dispatch_priority_lanes:Unit = {
+    if( !tune_priority_dispatch || priority_lane_items==0 || !has_consumer_credit ) {
+      return
+    }
+    var lane = PRIORITY_LANE_COUNT-1
+    while( lane >= 0 ) {
+      val entries = priority_lanes(lane)
+      // acquiring an entry takes it out of the lane, so walk by key.
+      var next = entries.firstEntry
+      while( next != null ) {
+        val entry = next.getValue
+        if( entry.is_loaded ) {
+          val expired = entry.expiration != 0 && entry.expiration <= now
+          if( !expired && !dispatch_priority_entry(entry) ) {
+            return
+          }
+        } else if( entry.is_swapped ) {
+          prefetch(entry)
+          entry.load(consumer_swapped_in)
         }
-        cur = next
+        next = entries.higherEntry(next.getKey)
       }
-      trace("combined %d entries", combine_counter)
+      lane -= 1
     }
-    
-    if(!messages.full) {
-      messages.refiller.run
+  }
+
+  /**
+   * Attempts to dispatch a loaded priority entry to the first subscription
+   * which is interested in it and has room for it.
+   * @returns true if the entry got acquired.
+   */
+  def dispatch_priority_entry(entry:QueueEntry):Boolean = {
+    val loaded = entry.as_loaded
+    if( loaded==null || loaded.is_acquired || (entry.expiration != 0 && entry.expiration <= now) ) {
+      return false
+    }
+    val delivery = loaded.delivery
+    val candidates = exclusive_subscriptions.find( _.matches(delivery) ) match {
+      case Some(exclusive_target) => Iterator(exclusive_target)
+      case None => all_subscriptions.valuesIterator
+    }
+    candidates.find(sub=> !sub.browser && !sub.full && sub.matches(delivery)) match {
+      case Some(sub) =>
+        loaded.acquire_by(sub)
+        true
+      case None =>
+        false
     }
+  }
 
+  /**
+   * Flags the entries at the front of the priority lanes as prefetched so that
+   * they stay loaded, up to the combined receive buffer of the consumers.
+   */
+  def prefetch_priority_lanes = {
+    if( tune_priority_dispatch && priority_lane_items > 0 ) {
+      var remaining = 0L
+      all_subscriptions.valuesIterator.foreach { sub =>
+        if( !sub.browser ) {
+          remaining += sub.consumer_buffer
+        }
+      }
+      var lane = PRIORITY_LANE_COUNT-1
+      while( lane >= 0 && remaining > 0 ) {
+        val i = priority_lanes(lane).values.iterator
+        while( i.hasNext && remaining > 0 ) {
+          val entry = i.next
+          remaining -= entry.size
+          prefetch(entry)
+          entry.load(consumer_swapped_in)
+        }
+        lane -= 1
+      }
+    }
   }
 
   var delivery_rate = 0L
@@ -809,6 +1245,10 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       val rate_adjustment = elapsed.toFloat / 1000.toFloat
       delivery_rate  = (delivery_rate / rate_adjustment).toLong
 
+      val enqueue_rate = ((enqueue_size_counter - enqueue_size_at_last_interval) / rate_adjustment).toLong
+      enqueue_size_at_last_interval = enqueue_size_counter
+      memory_demand = enqueue_rate.max(delivery_rate)
+
       val stall_ratio = ((consumer_stall_ms*100)+1).toFloat / ((load_stall_ms*100)+1).toFloat
 
       // Figure out what the max enqueue rate should be.
@@ -830,6 +1270,23 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         }
       }
 
+      latency_window_ticks += 1
+      if( latency_window_ticks >= LATENCY_WINDOW ) {
+        latency_window_ticks = 0
+        dequeue_latency = dequeue_latency_counter(true)
+        if( trace_metrics!=null && !trace_metrics.roll ) {
+          trace_metrics = null
+        }
+      }
+      val first = head_entry.getNext
+      if( first!=null ) {
+        enqueue_times.prune(first.seq)
+        // drop the traces of entries which got removed as part of a range.
+        if( !delivery_traces.isEmpty ) {
+          delivery_traces.headMap(first.seq).clear()
+        }
+      }
+
       swap_messages
       check_idle
       schedule_periodic_maintenance
@@ -863,17 +1320,47 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
   }
 
+  /**
+   * Collects the work resulting from acking a batch of entries so that
+   * it's only done once for the whole batch.
+   */
+  class AckBatch {
+    // used for the dequeues of the acks that did not supply a unit of work.
+    var uow:StoreUOW = null
+    // entries which should get dispatched once the batch completes.
+    var resume = ListBuffer[QueueEntry]()
+    var subscriptions = Set[Subscription]()
+
+    def store_uow = {
+      if( uow==null ) {
+        uow = virtual_host.store.create_uow
+      }
+      uow
+    }
+
+    def complete = {
+      if( uow!=null ) {
+        uow.release
+        uow = null
+      }
+      trigger_swap
+      resume.foreach(_.run)
+      subscriptions.foreach(_.check_finish_close)
+    }
+  }
+
   def drain_acks = might_unfill {
+    val batch = new AckBatch
     ack_source.getData.foreach {
       case (entry, consumed, uow) =>
         consumed match {
           case Consumed =>
 //            debug("ack consumed: ("+store_id+","+entry.entry.seq+")")
-            entry.ack(uow)
+            entry.ack(uow, batch)
           case Expired=>
 //            debug("ack expired: ("+store_id+","+entry.entry.seq+")")
             entry.entry.queue.expired(entry.entry, false)
-            entry.ack(uow)
+            entry.ack(uow, batch)
           case Delivered =>
             entry.entry.redelivered
             entry.nack
@@ -888,6 +1375,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           uow.release()
         }
     }
+    batch.complete
   }
 
   /////////////////////////////////////////////////////////////////////
@@ -898,6 +1386,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   /////////////////////////////////////////////////////////////////////
 
   def matches(delivery: Delivery) = filter.matches(delivery.message)
+  override def message_selector = filter
+  override def matches_ignoring_selector(delivery: Delivery) = true
 
   def is_persistent = tune_persistent
 
@@ -994,10 +1484,51 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   def disconnected() = throw new RuntimeException("unsupported")
 
   def bind(bind_address:BindAddress, consumer: DeliveryConsumer) = {
-    bind(consumer::Nil)
+    partition_consumers += consumer
+    bind_partitions
   }
   def unbind(consumer: DeliveryConsumer, persistent:Boolean):Unit = {
-    unbind(consumer::Nil)
+    partition_consumers -= consumer
+    bind_partitions
+  }
+
+  /**
+   * Binds the consumers to the partitions.  Each partition would pick
+   * it's own exclusive consumer, so when the queue is partitioned the
+   * exclusive consumer gets picked here: while there is one, it and the
+   * browsers are the only consumers bound to the partitions.
+   */
+  def bind_partitions = {
+    val owner = if( partitions.length > 1 ) {
+      partition_consumers.find(x=> x.exclusive && !x.browser)
+    } else {
+      None
+    }
+    val active = owner match {
+      case Some(owner) => partition_consumers.filter(x=> (x eq owner) || x.browser)
+      case None => partition_consumers
+    }
+    val removed = partition_bound.filterNot(active.contains(_)).toList
+    val added = active.filterNot(partition_bound.contains(_)).toList
+    if( !removed.isEmpty ) {
+      partition_bound --= removed
+      partitions.foreach(_.unbind(removed))
+    }
+    if( !added.isEmpty ) {
+      partition_bound ++= added
+      partitions.foreach(_.bind(added))
+    }
+  }
+
+  /**
+   * Picks the partition of a producer.  Keyed by the producer's connection
+   * so that the producers of one client host still get spread across the
+   * partitions, while the sends of a connection stay in order even when
+   * its producer routes get recreated.
+   */
+  def partition_of(producer:BindableDeliveryProducer) = {
+    val hash = producer.connection.map(_.id.hashCode).getOrElse(producer.hashCode)
+    partitions((hash & Int.MaxValue) % partitions.length)
   }
 
   def connect (connect_address:ConnectAddress, producer:BindableDeliveryProducer) = {
@@ -1007,12 +1538,14 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       val topic_address = new SimpleAddress("topic", binding.address.path)
       val topic = router.local_topic_domain.get_or_create_destination(topic_address, null).success
       topic.connect(topic_address, producer)
+    } else if( partitions.length > 1 ) {
+      // All the messages of a producer go to the same partition so
+      // that the per producer message order is preserved.
+      val partition = partition_of(producer)
+      partition_producers.put(producer, partition)
+      partition.connect_local(producer)
     } else {
-      dispatch_queue {
-        producers += producer
-        check_idle
-      }
-      producer.bind(this::Nil)
+      connect_local(producer)
     }
   }
 
@@ -1023,14 +1556,43 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       val topic = router.local_topic_domain.get_or_create_destination(topic_address, null).success
       topic.disconnect(producer)
     } else {
-      dispatch_queue {
-        producers -= producer
-        check_idle
+      partition_producers.remove(producer) match {
+        case Some(partition) => partition.disconnect_local(producer)
+        case None => disconnect_local(producer)
       }
-      producer.unbind(this::Nil)
     }
   }
 
+  def connect_local(producer:BindableDeliveryProducer) = {
+    dispatch_queue {
+      producers += producer
+      check_idle
+    }
+    producer.bind(this::Nil)
+  }
+
+  def disconnect_local(producer:BindableDeliveryProducer) = {
+    dispatch_queue {
+      producers -= producer
+      check_idle
+    }
+    producer.unbind(this::Nil)
+  }
+
+  /**
+   * Updates the partitions of a partitioned queue.  Consumers which
+   * were already bound get bound to the newly attached partitions.
+   */
+  def attach_partitions(values:Seq[Queue]) = {
+    router.dispatch_queue.assertExecuting()
+    val added = values.filterNot(partitions.contains(_))
+    partitions = (this +: values).toArray
+    if( !partition_bound.isEmpty ) {
+      added.foreach(_.bind(partition_bound.toList))
+    }
+    bind_partitions
+  }
+
   override def connection:Option[BrokerConnection] = None
 
   /////////////////////////////////////////////////////////////////////
@@ -1073,6 +1635,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         swapped.entry.run
       }
     }
+    dispatch_priority_lanes
   }
 
 }
@@ -1091,6 +1654,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   // in the entry.
   var prefetched = false
 
+  // set while the entry is tracked in one of the queue's priority lanes.
+  var in_priority_lane = false
+
+  // the timer tracking the entry in the queue's expiration index.
+  var expiration_timer:TimerWheel.Timer[QueueEntry] = null
+
   // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
   var state:EntryState = new Tail
 
@@ -1108,8 +1677,17 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   }
 
   def init(delivery:Delivery):QueueEntry = {
+    val enqueued = System.nanoTime
+    queue.enqueue_times.enqueued(seq, enqueued)
+    if( delivery.trace_received != 0 ) {
+      val delivery_trace = new DeliveryTrace(delivery.trace_received)
+      delivery_trace.enqueued = enqueued
+      queue.delivery_traces.put(seq, delivery_trace)
+    }
     queue.producer_swapped_in += delivery
     state = new Loaded(delivery, false, queue.producer_swapped_in)
+    queue.priority_lane_add(this)
+    queue.expiration_index_add(this)
     this
   }
 
@@ -1119,12 +1697,15 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     } else {
       SimpleAddress(qer.sender.utf8().toString)
     }
-    state = new Swapped(qer.message_key, qer.message_locator, qer.size, qer.expiration, qer.redeliveries, null, sender)
+    state = new Swapped(qer.message_key, qer.message_locator, qer.size, qer.expiration, qer.redeliveries, null, sender, qer.priority)
+    queue.priority_lane_add(this)
+    queue.expiration_index_add(this)
     this
   }
 
   def init(range:QueueEntryRange):QueueEntry = {
-    state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration)
+    state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration, range.max_expiration)
+    queue.expiration_index_add(this)
     this
   }
 
@@ -1182,6 +1763,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     qer.message_locator = state.message_locator
     qer.size = state.size
     qer.expiration = expiration
+    qer.priority = priority
     if( state.sender!=null ) {
       qer.sender = new UTF8Buffer(state.sender.toString)
     }
@@ -1224,6 +1806,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   def count = state.count
   def size = state.size
   def expiration = state.expiration
+  def priority = state.priority
   def redelivery_count = state.redelivery_count
   def redelivered = state.redelivered
   def messageKey = state.message_key
@@ -1243,7 +1826,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     getPrevious !=null &&
       getPrevious.is_swapped_range &&
         ( (is_swapped && !is_acquired) || is_swapped_range ) &&
-          (getPrevious.count + count  < queue.tune_swap_range_size) && !is_loading
+          (getPrevious.count + count  < queue.tune_swap_range_size) && !is_loading && !in_priority_lane && !getPrevious.is_loading
   }
 
   trait EntryState {
@@ -1266,6 +1849,17 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
      */
     def expiration = 0L
 
+    /**
+     * When the last of the messages held by the entry expires or 0
+     * if any of them does not expire.
+     */
+    def max_expiration = expiration
+
+    /**
+     * The priority of the message held by the entry.
+     */
+    def priority:Byte = 0
+
     /**
      * When the entry expires or 0 if it does not expire.
      */
@@ -1331,6 +1925,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
      * as a result of an acquired ack.
      */
     def remove:Unit = {
+      queue.priority_lane_remove(entry)
+      queue.expiration_index_remove(entry)
+      if( !queue.delivery_traces.isEmpty ) {
+        queue.delivery_traces.remove(seq)
+      }
+
       // advance subscriptions that were on this entry..
       advance(parked)
       parked = Nil
@@ -1412,11 +2012,26 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     override def memory_space = space
 
+    // Set while the entry is acquired, the memory manager does not count
+    // pinned memory as something the queues can swap out.
+    var pinned = false
+
+    def pin = if( !pinned ) {
+      pinned = true
+      space.pin(delivery)
+    }
+
+    def unpin = if( pinned ) {
+      pinned = false
+      space.unpin(delivery)
+    }
+
     var swapping_out = false
     var storing = false
 
     queue.loaded_items += 1
     queue.loaded_size += size
+    queue.loaded_entries.add(entry)
 
     def label = {
       var rc = "loaded"
@@ -1434,6 +2049,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     override def count = 1
     override def size = delivery.size
     override def expiration = delivery.message.expiration
+    override def priority = delivery.message.priority
     override def message_key = delivery.storeKey
     override def message_locator = delivery.storeLocator
     override def redelivery_count = delivery.redeliveries
@@ -1456,8 +2072,13 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         storing = true
         delivery.uow.enqueue(toQueueEntryRecord)
         queue.swapping_out_size+=size
+        val delivery_trace = queue.delivery_trace(entry)
         delivery.uow.on_flush { canceled =>
+          val flushed = if( delivery_trace!=null && !canceled ) System.nanoTime else 0L
           queue.swap_out_completes_source.merge(^{
+            if( flushed != 0 ) {
+              delivery_trace.stored = flushed
+            }
             this.swapped_out(!canceled)
             queue.swapping_out_size-=size
             if( queue.swapping_out_size==0 ) {
@@ -1516,6 +2137,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       delivery.uow = null
       if( swapping_out ) {
         swapping_out = false
+        unpin
         space -= delivery
 
         if( store_wrote_to_disk ) {
@@ -1523,7 +2145,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           queue.swap_out_item_counter += 1
         }
 
-        state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration, redelivery_count, acquirer, sender)
+        queue.loaded_entries.remove(entry)
+        state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration, redelivery_count, acquirer, sender, priority)
         if( can_combine_with_prev ) {
           getPrevious.as_swapped_range.combineNext
         }
@@ -1536,6 +2159,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       } else {
         if( remove_pending ) {
           delivery.message.release
+          unpin
           space -= delivery
           super.remove
         }
@@ -1544,25 +2168,64 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     override def swap_in(space:MemorySpace) = {
       if(space ne this.space) {
+        val was_pinned = pinned
+        unpin
         this.space -= delivery
         this.space = space
         this.space += delivery
+        if( was_pinned ) {
+          pin
+        }
       }
       swapping_out = false
     }
 
     override def remove = {
+      queue.priority_lane_remove(entry)
+      queue.expiration_index_remove(entry)
+      queue.loaded_entries.remove(entry)
       queue.loaded_items -= 1
       queue.loaded_size -= size
       if( storing | remove_pending ) {
         remove_pending = true
       } else {
         delivery.message.release
+        unpin
         space -= delivery
         super.remove
       }
     }
 
+    /**
+     * Has the subscription acquire this entry and offers it the delivery.  The
+     * subscription must not be full.
+     */
+    def acquire_by(sub:Subscription) = {
+      acquirer = sub
+      pin
+      val delivery_trace = queue.delivery_trace(entry)
+      if( delivery_trace!=null && delivery_trace.dispatched==0 ) {
+        delivery_trace.dispatched = System.nanoTime
+      }
+      queue.priority_lane_remove(entry)
+
+      val acquiredQueueEntry = sub.acquire(entry)
+      val acquiredDelivery = delivery.copy
+      if( acquiredDelivery.sender==null ) {
+        acquiredDelivery.sender = queue.address
+      }
+
+      acquiredDelivery.ack = (consumed, uow)=> {
+        if( uow!=null ) {
+          uow.retain()
+        }
+        queue.ack_source.merge((acquiredQueueEntry, consumed, uow))
+      }
+
+      val accepted = sub.offer(acquiredDelivery)
+      assert(accepted, "sub should have accepted, it had reported not full earlier.")
+    }
+
     override def dispatch():Boolean = {
 
       queue.assert_executing
@@ -1578,6 +2241,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         return false
       }
 
+      // A lone competing sub can claim the run of loaded entries
+      // which starts here in one pass.
+      if( parked.tail.isEmpty && !parked.head.browser && queue.exclusive_subscriptions.isEmpty ) {
+        return parked.head.dispatch_run(entry)
+      }
+
       var heldBack = ListBuffer[Subscription]()
       var advancing = ListBuffer[Subscription]()
 
@@ -1635,23 +2304,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
                 } else {
                   // advance: accepted...
                   acquiringSub = sub
-                  acquirer = sub
-
-                  val acquiredQueueEntry = sub.acquire(entry)
-                  val acquiredDelivery = delivery.copy
-                  if( acquiredDelivery.sender==null ) {
-                    acquiredDelivery.sender = queue.address
-                  }
-
-                  acquiredDelivery.ack = (consumed, uow)=> {
-                    if( uow!=null ) {
-                      uow.retain()
-                    }
-                    queue.ack_source.merge((acquiredQueueEntry, consumed, uow))
-                  }
-
-                  val accepted = sub.offer(acquiredDelivery)
-                  assert(accepted, "sub should have accepted, it had reported not full earlier.")
+                  acquire_by(sub)
                 }
               }
             }
@@ -1692,9 +2345,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
    * entry is persisted, it can move into this state.  This state only holds onto the
    * the massage key so that it can reload the message from the store quickly when needed.
    */
-  class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Object], override val size:Int, override val expiration:Long, var _redeliveries:Short, var acquirer:Subscription, override  val sender:DestinationAddress) extends EntryState {
+  class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Object], override val size:Int, override val expiration:Long, var _redeliveries:Short, var acquirer:Subscription, override  val sender:DestinationAddress, override val priority:Byte) extends EntryState {
 
     queue.individual_swapped_items += 1
+    queue.swapped_entries += entry
 
     var space:MemorySpace = _
 
@@ -1732,6 +2386,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         // start swapping in...
         space = mem_space
         queue.swapping_in_size += size
+        val delivery_trace = queue.delivery_trace(entry)
+        if( delivery_trace!=null ) {
+          delivery_trace.swap_in_started = System.nanoTime
+        }
         queue.virtual_host.store.load_message(message_key, message_locator) { delivery =>
           // pass off to a source so it can aggregate multiple
           // loads to reduce cross thread synchronization
@@ -1769,6 +2427,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
         queue.swap_in_size_counter += size
         queue.swap_in_item_counter += 1
+        val delivery_trace = queue.delivery_trace(entry)
+        if( delivery_trace!=null && delivery_trace.swap_in_started!=0 ) {
+          delivery_trace.swap_in_time += System.nanoTime - delivery_trace.swap_in_started
+          delivery_trace.swap_in_started = 0
+        }
 
         queue.individual_swapped_items -= 1
         state = new Loaded(delivery, true, space)
@@ -1796,7 +2459,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swapping_in_size -= size
       }
       queue.individual_swapped_items -= 1
-      state = new SwappedRange(seq, 1, size, expiration)
+      state = new SwappedRange(seq, 1, size, expiration, expiration)
     }
 
     override def dispatch():Boolean = {
@@ -1869,12 +2532,16 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     var _count:Int,
     /** size in bytes of the range */
     var _size:Int,
-    var _expiration:Long) extends EntryState {
+    /** the earliest expiration in the range */
+    var _expiration:Long,
+    /** the latest expiration in the range, 0 if some entries do not expire */
+    var _max_expiration:Long) extends EntryState {
 
 
     override def count = _count
     override def size = _size
     override def expiration = _expiration
+    override def max_expiration = _max_expiration
 
     var loading = false
 
@@ -1899,6 +2566,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           queue.dispatch_queue {
             loading  = false
             assert(isLinked)
+            queue.expiration_index_remove(entry)
 
             var item_count=0
             var size_count=0
@@ -1961,8 +2629,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           _expiration = value.expiration.min(_expiration)
         }
       }
+      if( _max_expiration != 0 ) {
+        _max_expiration = if( value.max_expiration == 0 ) 0 else value.max_expiration.max(_max_expiration)
+      }
       _size += value.size
       value.remove
+      queue.expiration_index_update(entry)
     }
 
   }
@@ -2029,6 +2701,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
         check_consumer_stall
       }
       if( pos!=null ) {
+        queue.dispatch_priority_lanes
         pos.run
       }
     }
@@ -2045,6 +2718,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
     if( queue.service_state.is_started ) {
       // kick off the initial dispatch.
       refill_prefetch
+      queue.dispatch_priority_lanes
       queue.dispatch_queue << pos
     }
     queue.check_idle
@@ -2134,6 +2808,56 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
   def acquire(entry:QueueEntry) = new AcquiredQueueEntry(entry)
 
+  /**
+   * Acquires the run of loaded entries starting at the subscription's position,
+   * up to the consumer buffer size, and offers them to the session in one pass.
+   * The subscription then parks on the entry following the run.  Must only be
+   * used when the subscription is the only one parked at the start entry
+   * since the run stops at entries where other subscriptions are parked.
+   *
+   * @returns true if the subscription advanced.
+   */
+  def dispatch_run(start:QueueEntry):Boolean = {
+    var cur = start
+    var remaining = consumer_buffer
+    var done = false
+    while( !done ) {
+      val loaded = cur.as_loaded
+      if( loaded==null || ((cur ne start) && cur.hasSubs) || remaining <= 0 ) {
+        done = true
+      } else if( !loaded.is_acquired && loaded.expiration != 0 && loaded.expiration <= queue.now ) {
+        // let the regular dispatch expire it.
+        done = true
+      } else {
+        if( !loaded.is_acquired && matches(loaded.delivery) ) {
+          if( full ) {
+            done = true
+          } else {
+            remaining -= cur.size
+            loaded.acquire_by(this)
+          }
+        }
+        if( !done ) {
+          cur = cur.nextOrTail
+        }
+      }
+    }
+
+    if( cur eq start ) {
+      false
+    } else {
+      start -= this
+      cur ::= this
+      advance(cur)
+      queue.trigger_swap
+      if( !full && !cur.is_tail ) {
+        // it stopped at an entry it could not batch through, dispatch it normally.
+        queue.dispatch_queue << cur
+      }
+      true
+    }
+  }
+
   def check_load_stall = {
     if ( pos.is_swapped_or_swapped_range ) {
       if(load_stall_start==0) {
@@ -2200,7 +2924,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       // Non-Browsers prefetch non-acquired messages.
       if( !cursor.prefetched && (browser || !cursor.is_acquired) ) {
         remaining -= cursor.size
-        cursor.prefetched = true
+        queue.prefetch(cursor)
         cursor.load(queue.consumer_swapped_in)
       }
       cursor = next
@@ -2219,6 +2943,17 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
     acquired_size += entry.size
 
     def ack(uow:StoreUOW):Unit = {
+      val batch = new queue.AckBatch
+      ack(uow, batch)
+      batch.complete
+    }
+
+    /**
+     * Acks the entry as part of a batch.  The dequeue is added to the batch's
+     * unit of work if no uow is supplied and dispatching resumes once the
+     * batch completes.
+     */
+    def ack(uow:StoreUOW, batch:Queue#AckBatch):Unit = {
       assert_executing
       if(!isLinked) {
         debug("Unexpected ack: message seq allready acked: "+entry.seq)
@@ -2228,18 +2963,27 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       total_ack_count += 1
       if (entry.messageKey != -1) {
         val storeBatch = if( uow == null ) {
-          queue.virtual_host.store.create_uow
+          batch.store_uow
         } else {
           uow
         }
         storeBatch.dequeue(entry.toQueueEntryRecord)
-        if( uow == null ) {
-          storeBatch.release
-        }
       }
       queue.dequeue_item_counter += 1
       queue.dequeue_size_counter += entry.size
       queue.dequeue_ts = queue.now
+      val enqueued = queue.enqueue_times.time_of(entry.seq)
+      if( enqueued != 0 ) {
+        val acked = System.nanoTime
+        queue.dequeue_latency_counter += acked - enqueued
+        val delivery_trace = queue.delivery_trace(entry)
+        if( delivery_trace!=null ) {
+          if( queue.trace_metrics==null ) {
+            queue.trace_metrics = new DeliveryTraceMetrics
+          }
+          queue.trace_metrics.record(delivery_trace, acked)
+        }
+      }
 
       // removes this entry from the acquired list.
       unlink()
@@ -2250,10 +2994,8 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
       val next = entry.nextOrTail
       entry.remove // entry size changes to 0
 
-      queue.trigger_swap
-      next.run
-      check_finish_close
-      
+      batch.resume += next
+      batch.subscriptions += Subscription.this
     }
 
     def nack:Unit = {
@@ -2265,9 +3007,13 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Deliv
 
       total_nack_count += 1
       entry.state match {
-        case x:entry.Loaded=> x.acquirer = null
+        case x:entry.Loaded=>
+          x.acquirer = null
+          x.unpin
         case x:entry.Swapped=> x.acquirer = null
       }
+      queue.priority_lane_add(entry)
+      queue.expiration_index_add(entry)
       acquired_size -= entry.size
 
       // track for stats
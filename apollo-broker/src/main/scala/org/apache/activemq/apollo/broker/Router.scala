@@ -26,6 +26,7 @@ import java.util.concurrent.atomic.AtomicReference
 import collection.mutable.ListBuffer
 import java.util.regex.Pattern
 import java.lang.String
+import org.apache.activemq.apollo.filter.{BooleanExpression, ConstantExpression, SelectorIndex}
 
 object DestinationAddress {
   
@@ -198,7 +199,10 @@ trait BindableDeliveryProducer extends DeliveryProducer with Retained {
 
 }
 
-object DeliveryProducerRoute extends Log
+object DeliveryProducerRoute extends Log {
+  // How many consumers with selectors a route needs before it indexes them.
+  val SELECTOR_INDEX_THRESHOLD = 4
+}
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -226,6 +230,7 @@ abstract class DeliveryProducerRoute(router:Router) extends BaseRetained with Bi
         target.refiller = drainer
         targets ::= target
       }
+      selector_index_valid = false
     }
   }
 
@@ -246,6 +251,7 @@ abstract class DeliveryProducerRoute(router:Router) extends BaseRetained with Bi
       }
       rc
     }
+    selector_index_valid = false
     targets.foreach(_.release)
   }
 
@@ -273,6 +279,34 @@ abstract class DeliveryProducerRoute(router:Router) extends BaseRetained with Bi
 
   def full = overflow!=null
 
+  var selector_index:SelectorIndex[DeliverySession] = null
+  var selector_index_valid = false
+
+  /**
+   * Plain queues and consumers without a selector match everything, so
+   * they don't get indexed.
+   */
+  def is_selecting(selector:BooleanExpression) = selector!=null && (selector ne ConstantExpression.TRUE)
+
+  /**
+   * Indexes the selectors of the targets once enough of them use one, so that
+   * they get evaluated together instead of once per target.
+   */
+  def current_selector_index = {
+    if( !selector_index_valid ) {
+      selector_index_valid = true
+      val selecting = targets.filter(x=> is_selecting(x.consumer.message_selector))
+      selector_index = if( selecting.size >= SELECTOR_INDEX_THRESHOLD ) {
+        val index = new SelectorIndex[DeliverySession]
+        selecting.foreach(x=> index.add(x, x.consumer.message_selector))
+        index
+      } else {
+        null
+      }
+    }
+    selector_index
+  }
+
   def offer(delivery:Delivery) = {
     dispatch_queue.assertExecuting()
     if( full ) {
@@ -284,10 +318,18 @@ abstract class DeliveryProducerRoute(router:Router) extends BaseRetained with Bi
       val copy = delivery.copy
       copy.message.retain
 
+      val index = current_selector_index
+      val selected = if( index!=null ) index.matching(copy.message) else null
+
       targets.foreach { target=>
 
         // only deliver to matching consumers
-        if( target.consumer.matches(copy) ) {
+        val matches = if( selected!=null && is_selecting(target.consumer.message_selector) ) {
+          selected.contains(target) && target.consumer.matches_ignoring_selector(copy)
+        } else {
+          target.consumer.matches(copy)
+        }
+        if( matches ) {
 
           if ( target.consumer.is_persistent && copy.message.persistent
                 && copy.storeKey == -1L && store != null) {
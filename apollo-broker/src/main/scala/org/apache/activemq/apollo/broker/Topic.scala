@@ -163,6 +163,8 @@ class Topic(val router:LocalRouter, val address:DestinationAddress, var config_u
     def retain() = consumer.retain()
     def release() = consumer.release()
     def matches(message: Delivery) = consumer.matches(message)
+    override def message_selector = consumer.message_selector
+    override def matches_ignoring_selector(message: Delivery) = consumer.matches_ignoring_selector(message)
     def is_persistent = consumer.is_persistent
     def dispatch_queue = consumer.dispatch_queue
     def connect(producer: DeliveryProducer) = {
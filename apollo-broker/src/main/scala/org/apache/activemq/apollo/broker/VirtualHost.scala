@@ -27,6 +27,7 @@ import security.SecuredResource.VirtualHostKind
 import store._
 import java.lang.{Throwable, String}
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 trait VirtualHostFactory {
   def create(broker:Broker, dto:VirtualHostDTO):VirtualHost
@@ -141,6 +142,27 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService with Se
   @volatile
   var client_redirect:Option[String] = None
 
+  @volatile
+  var trace_sample_rate = 0
+  private val trace_sample_counter = new AtomicInteger
+
+  /**
+   * Returns the current System.nanoTime for one out of every trace_sample_rate
+   * calls and 0 otherwise.  It gets called from all the connection threads.
+   */
+  def sample_trace:Long = {
+    val rate = trace_sample_rate
+    if( rate <= 0 ) {
+      0
+    } else {
+      if( (trace_sample_counter.incrementAndGet() & Int.MaxValue) % rate == 0 ) {
+        System.nanoTime
+      } else {
+        0
+      }
+    }
+  }
+
   override def toString = if (config==null) "virtual-host" else "virtual-host: "+config.id
 
   /**
@@ -173,6 +195,7 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService with Se
     audit_log = Option(log_category.audit).map(Log(_)).getOrElse(broker.audit_log)
     connection_log = Option(log_category.connection).map(Log(_)).getOrElse(broker.connection_log)
     console_log = Option(log_category.console).map(Log(_)).getOrElse(broker.console_log)
+    trace_sample_rate = config.trace_sample_rate.getOrElse(0)
 
     if (config.authentication != null) {
       if (config.authentication.enabled.getOrElse(true)) {
@@ -310,7 +333,7 @@ class VirtualHost(val broker: Broker, val id:String) extends BaseService with Se
   }
   
   def get_queue_metrics:FutureResult[AggregateDestMetricsDTO] = {
-    val queues:Iterable[Queue] = local_router.local_queue_domain.destinations
+    val queues:Iterable[Queue] = local_router.local_queue_domain.destinations.flatMap(_.partitions)
     val metrics = sync_all (queues) { queue =>
       queue.get_queue_metrics
     }
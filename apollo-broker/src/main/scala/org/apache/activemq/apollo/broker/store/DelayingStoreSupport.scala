@@ -27,7 +27,65 @@ import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricD
 import org.fusesource.hawtbuf.Buffer
 import java.lang.ref.WeakReference
 
-object DelayingStoreSupport extends Log
+object DelayingStoreSupport extends Log {
+  // How many delayed enqueues of a queue get observed before its delay is adapted.
+  val FLUSH_STATS_WARMUP = 16
+  // Below this cancel ratio, enqueues of the queue get flushed right away.
+  val MIN_CANCEL_RATIO = 0.05
+  // 1 in this many units of work still gets delayed for the full flush
+  // delay so that the stats keep seeing the slower cancels.
+  val FLUSH_PROBE_INTERVAL = 16
+}
+
+/**
+ * <p>
+ * Tracks how often the delayed enqueues of a queue get canceled by a dequeue
+ * and how long that takes, so that the store only delays the enqueues
+ * of a queue for as long as it's likely to pay off.  Only the units of work
+ * which were delayed for the full flush delay get sampled, since a shorter
+ * delay would hide the cancels which take longer than it.
+ * </p>
+ */
+class FlushDelayStats {
+  import DelayingStoreSupport._
+
+  var samples = 0L
+  // moving averages
+  var cancel_ratio = 1.0
+  var cancel_latency = 0L
+  var probe_counter = 0
+
+  private def sample(value:Double, average:Double) = average + (value - average) / FLUSH_STATS_WARMUP
+
+  def canceled(latency:Long) = {
+    samples += 1
+    cancel_ratio = sample(1, cancel_ratio)
+    cancel_latency = if( samples == 1 ) latency else sample(latency, cancel_latency).toLong
+  }
+
+  def flushed = {
+    samples += 1
+    cancel_ratio = sample(0, cancel_ratio)
+  }
+
+  /**
+   * @return how long in ms to delay the enqueue, never more than max_delay.
+   */
+  def delay(max_delay:Long):Long = {
+    if( samples < FLUSH_STATS_WARMUP ) {
+      return max_delay
+    }
+    probe_counter += 1
+    if( probe_counter % FLUSH_PROBE_INTERVAL == 0 ) {
+      max_delay
+    } else if( cancel_ratio < MIN_CANCEL_RATIO ) {
+      0
+    } else {
+      // Wait long enough to catch most of the cancels.
+      max_delay.min(TimeUnit.NANOSECONDS.toMillis(cancel_latency * 2) + 1)
+    }
+  }
+}
 
 sealed trait UowState {
   def stage:Int
@@ -85,10 +143,30 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def flush_delay:Long
 
+  /**
+   * When enabled, flush_delay becomes the upper bound of a delay which is
+   * picked per unit of work based on how often the enqueues of its queues
+   * got canceled recently.
+   */
+  protected def adaptive_flush_delay:Boolean = false
+
   protected def get_next_msg_key:Long
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
 
+  /**
+   * The number of flush batches which can be handed to the store before
+   * the first one completes.  Stores which write on a single thread can
+   * then write the next batch while the previous one is being synced.
+   */
+  protected def flush_pipeline_depth:Int = 1
+
+  /**
+   * Once a flush batch holds this many bytes of message data, the remaining
+   * units of work go into the next batch.
+   */
+  protected def flush_batch_size:Int = 1024*1024*4
+
   /////////////////////////////////////////////////////////////////////
   //
   // Implementation of the BaseService interface
@@ -194,6 +272,18 @@ trait DelayingStoreSupport extends Store with BaseService {
     var delayable_actions = 0
 
     def delayable = !flush_asap && delayable_actions>0 && flush_delay>=0
+    // The delay in ms which was applied before flushing.
+    var applied_flush_delay = 0L
+
+    def flush_size = {
+      var rc = 0L
+      actions.foreach { case (_, action) =>
+        if( action.message_record!=null && action.message_record.buffer!=null ) {
+          rc += action.message_record.buffer.length
+        }
+      }
+      rc
+    }
 
     def rm(msg:Long) = {
       actions -= msg
@@ -284,14 +374,7 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def locator_based = false
   
-  implicit def toTimeMetricDTO( m: TimeMetric) = {
-    val rc = new TimeMetricDTO()
-    rc.count = m.count
-    rc.max = m.max
-    rc.min = m.min
-    rc.total = m.total
-    rc
-  }
+  implicit def toTimeMetricDTO( m: TimeMetric):TimeMetricDTO = TimeMetricDTO.create(m)
 
   implicit def toIntMetricDTO( m: IntMetric) = {
     val rc = new IntMetricDTO()
@@ -395,6 +478,9 @@ trait DelayingStoreSupport extends Store with BaseService {
 
                   prev_uow.delayable_actions -= 1
                   metric_canceled_enqueue_counter += 1
+                  if( is_flush_probe(prev_uow) ) {
+                    flush_stats(entry.queue_key).canceled(System.nanoTime - prev_uow.close_ts)
+                  }
 
                   // yay we can cancel out a previous enqueue
                   prev_action.enqueues = prev_action.enqueues.filterNot( x=> key(x) == entry_key )
@@ -432,10 +518,12 @@ trait DelayingStoreSupport extends Store with BaseService {
       }
 
       if( !uow.canceled && uow.state.stage < UowFlushQueued.stage ) {
-        if( uow.delayable ) {
+        val delay = if( uow.delayable ) flush_delay_of(uow) else 0L
+        if( delay > 0 ) {
+          uow.applied_flush_delay = delay
           // Let the uow get GCed if its' canceled during the delay window..
           val ref = new WeakReference[DelayableUOW](uow)
-          schedule_flush(ref)
+          schedule_flush(ref, delay)
         } else {
           queue_flush(uow)
         }
@@ -453,8 +541,49 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
   })
 
-  private def schedule_flush(ref: WeakReference[DelayableUOW]) {
-    dispatch_queue.executeAfter(flush_delay, TimeUnit.MILLISECONDS, ^ {
+  val flush_delay_stats = new java.util.HashMap[Long, FlushDelayStats]()
+
+  /**
+   * Drops the flush delay stats of a queue.  Stores call this when the
+   * queue gets removed.
+   */
+  protected def remove_flush_stats(queue_key:Long) = dispatch_queue {
+    flush_delay_stats.remove(queue_key)
+  }
+
+  // Was the unit of work delayed for the full flush delay?
+  def is_flush_probe(uow:DelayableUOW) = {
+    adaptive_flush_delay && uow.applied_flush_delay > 0 && uow.applied_flush_delay >= flush_delay
+  }
+
+  def flush_stats(queue_key:Long) = {
+    var rc = flush_delay_stats.get(queue_key)
+    if( rc == null ) {
+      rc = new FlushDelayStats
+      flush_delay_stats.put(queue_key, rc)
+    }
+    rc
+  }
+
+  /**
+   * The delay is the longest one wanted by the queues the unit of work
+   * enqueues to.
+   */
+  def flush_delay_of(uow:DelayableUOW):Long = {
+    if( !adaptive_flush_delay ) {
+      return flush_delay
+    }
+    var rc = -1L
+    uow.actions.foreach { case (_, action) =>
+      action.enqueues.foreach { entry =>
+        rc = rc.max(flush_stats(entry.queue_key).delay(flush_delay))
+      }
+    }
+    if( rc < 0 ) flush_delay else rc
+  }
+
+  private def schedule_flush(ref: WeakReference[DelayableUOW], delay:Long) {
+    dispatch_queue.executeAfter(delay, TimeUnit.MILLISECONDS, ^ {
       val uow = ref.get();
       if (uow != null) {
         queue_flush(uow)
@@ -476,52 +605,93 @@ trait DelayingStoreSupport extends Store with BaseService {
   val flush_latency_counter = new TimeCounter
   var flush_latency = flush_latency_counter(false)
 
+  class FlushBatch(val uows:ListBuffer[DelayableUOW]) {
+    var end:()=>Unit = null
+    var stored = false
+  }
+
+  // The batches handed to the store, oldest first.
+  val flushes_in_flight = ListBuffer[FlushBatch]()
+  // The units of work waiting for room in the flush pipeline.
+  var pending_flushes = ListBuffer[DelayableUOW]()
+
   def drain_flushes:Unit = {
     dispatch_queue.assertExecuting()
 
     if( !service_state.is_started ) {
       return
     }
-    
-    // Some UOWs may have been canceled.
-    val uows = flush_source.getData.flatMap { uow=>
-      if( uow.canceled ) {
-        None
-      } else {
-        uow.state = UowFlushing
-        assert( uow.have_locators )
-        // It will not be possible to cancel the UOW anymore..
-        uow.actions.foreach { case (_, action) =>
-          action.enqueues.foreach { queue_entry=>
-            val action = cancelable_enqueue_actions.remove(key(queue_entry))
-            assert(action!=null)
+
+    pending_flushes ++= flush_source.getData
+    start_flushes
+  }
+
+  def start_flushes:Unit = {
+    while( flushes_in_flight.size < flush_pipeline_depth.max(1) && !pending_flushes.isEmpty ) {
+      // Some UOWs may have been canceled.
+      val uows = ListBuffer[DelayableUOW]()
+      var size = 0L
+      while( !pending_flushes.isEmpty && (uows.isEmpty || size < flush_batch_size) ) {
+        val uow = pending_flushes.remove(0)
+        if( !uow.canceled ) {
+          if( is_flush_probe(uow) ) {
+            // These enqueues waited in vain.
+            uow.actions.foreach { case (_, action) =>
+              action.enqueues.foreach { entry =>
+                flush_stats(entry.queue_key).flushed
+              }
+            }
           }
+          uow.state = UowFlushing
+          assert( uow.have_locators )
+          // It will not be possible to cancel the UOW anymore..
+          uow.actions.foreach { case (_, action) =>
+            action.enqueues.foreach { queue_entry=>
+              val action = cancelable_enqueue_actions.remove(key(queue_entry))
+              assert(action!=null)
+            }
+          }
+          uows += uow
+          size += uow.flush_size
         }
-        Some(uow)
+      }
+      if( !uows.isEmpty ) {
+        flush(uows)
       }
     }
-    if( !uows.isEmpty ) {
-      flush_latency_counter.start { end=>
-        flush_source.suspend
-        store(uows) {
-          store_completed(uows)
-          flush_source.resume
-          dispatch_queue.assertExecuting()
-          uows.foreach { uow=>
-            uow.actions.foreach { case (msg, action) =>
-              if( action.message_record !=null ) {
-                metric_flushed_message_counter += 1
-                pending_stores.remove(msg)
-              }
-              action.enqueues.foreach { queue_entry=>
-                metric_flushed_enqueue_counter += 1
-              }
-            }
-          }
-          end()
+  }
+
+  private def flush(uows:ListBuffer[DelayableUOW]) = {
+    val batch = new FlushBatch(uows)
+    flushes_in_flight += batch
+    flush_latency_counter.start { end=>
+      batch.end = end
+      store(uows) {
+        dispatch_queue.assertExecuting()
+        batch.stored = true
+        // Complete the batches in the order they were started.
+        while( !flushes_in_flight.isEmpty && flushes_in_flight.head.stored ) {
+          flush_completed(flushes_in_flight.remove(0))
+        }
+        start_flushes
+      }
+    }
+  }
+
+  private def flush_completed(batch:FlushBatch) = {
+    store_completed(batch.uows)
+    batch.uows.foreach { uow=>
+      uow.actions.foreach { case (msg, action) =>
+        if( action.message_record !=null ) {
+          metric_flushed_message_counter += 1
+          pending_stores.remove(msg)
+        }
+        action.enqueues.foreach { queue_entry=>
+          metric_flushed_enqueue_counter += 1
         }
       }
     }
+    batch.end()
   }
 
   def store_completed(uows: ListBuffer[DelayingStoreSupport.this.type#DelayableUOW]) = {
@@ -85,6 +85,8 @@ object PBSupport {
       pb.setExpiration(v.expiration)
     if(v.redeliveries!=0)
       pb.setRedeliveries(v.redeliveries)
+    if(v.priority!=0)
+      pb.setPriority(v.priority)
     pb.setSender(v.sender)
     pb
   }
@@ -99,6 +101,7 @@ object PBSupport {
     rc.expiration = pb.getExpiration
     rc.redeliveries = pb.getRedeliveries.toShort
     rc.sender = pb.getSender
+    rc.priority = pb.getPriority.toByte
     rc
   }
 
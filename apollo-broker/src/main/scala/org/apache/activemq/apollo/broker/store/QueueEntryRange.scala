@@ -25,5 +25,8 @@ class QueueEntryRange {
   var last_entry_seq = 0L
   var count = 0
   var size = 0
+  /** the earliest expiration in the range or 0 if none of the entries expire */
   var expiration = 0L
+  /** the latest expiration in the range or 0 if any of the entries does not expire */
+  var max_expiration = 0L
 }
\ No newline at end of file
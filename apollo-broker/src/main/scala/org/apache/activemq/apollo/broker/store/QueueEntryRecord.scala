@@ -36,5 +36,6 @@ class QueueEntryRecord {
   var expiration = 0L
   var redeliveries:Short = 0
   var sender:Buffer = _
+  var priority:Byte = 0
 
 }
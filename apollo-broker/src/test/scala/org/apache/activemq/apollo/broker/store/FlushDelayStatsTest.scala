@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import java.util.concurrent.TimeUnit
+
+class FlushDelayStatsTest extends FunSuiteSupport {
+
+  import DelayingStoreSupport._
+
+  test("uses the max delay until it has enough samples") {
+    val stats = new FlushDelayStats
+    for( i <- 1 until FLUSH_STATS_WARMUP ) {
+      stats.flushed
+    }
+    expect(500) {
+      stats.delay(500)
+    }
+  }
+
+  test("fast consumers get a short delay") {
+    val stats = new FlushDelayStats
+    for( i <- 0 until FLUSH_STATS_WARMUP*2 ) {
+      stats.canceled(TimeUnit.MILLISECONDS.toNanos(10))
+    }
+    expect(21) {
+      stats.delay(500)
+    }
+    expect(5) {
+      stats.delay(5)
+    }
+  }
+
+  test("enqueues which don't get canceled are flushed right away") {
+    val stats = new FlushDelayStats
+    for( i <- 0 until FLUSH_STATS_WARMUP*4 ) {
+      stats.flushed
+    }
+    val delays = (0 until FLUSH_PROBE_INTERVAL).map(x=> stats.delay(500))
+    expect(FLUSH_PROBE_INTERVAL-1) {
+      delays.filter(_ == 0).size
+    }
+    expect(1) {
+      delays.filter(_ == 500).size
+    }
+  }
+}
@@ -144,6 +144,21 @@ abstract class StoreFunSuiteSupport extends FunSuiteSupport with BeforeAndAfterE
     }
   }
 
+  test("queue lookups see the queue updates issued before them") {
+    val A = QueueRecord(queue_key_counter.incrementAndGet, ascii("test"), ascii("A"))
+    store.add_queue(A) { rc => }
+    val rc:Option[QueueRecord] = sync_cb( cb=> store.get_queue(A.key)(cb) )
+    expect(ascii("A")) {
+      rc.get.binding_data.ascii
+    }
+
+    store.remove_queue(A.key) { rc => }
+    val seq:Seq[Long] = Nil
+    expectCB(seq) { cb=>
+      store.list_queues(cb)
+    }
+  }
+
   test("export and import") {
     val A = add_queue("A")
     val msg_keys = populate(A, "message 1"::"message 2"::"message 3"::Nil)
@@ -102,6 +102,15 @@ public class BrokerDTO {
     @XmlAttribute(name="validation")
     public String validation;
 
+    /**
+     * The max amount of memory the swapped in messages of all the queues
+     * are allowed to use.  Once that is nearly reached, the queues start
+     * swapping messages out and throttle their producers.  Not limited
+     * when not set.
+     */
+    @XmlAttribute(name="memory_limit")
+    public String memory_limit;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -131,6 +140,7 @@ public class BrokerDTO {
         if (other != null ? !other.equals(brokerDTO.other) : brokerDTO.other != null) return false;
         if (services != null ? !services.equals(brokerDTO.services) : brokerDTO.services != null) return false;
         if (validation != null ? !validation.equals(brokerDTO.validation) : brokerDTO.validation != null) return false;
+        if (memory_limit != null ? !memory_limit.equals(brokerDTO.memory_limit) : brokerDTO.memory_limit != null) return false;
         if (virtual_hosts != null ? !virtual_hosts.equals(brokerDTO.virtual_hosts) : brokerDTO.virtual_hosts != null)
             return false;
         if (web_admins != null ? !web_admins.equals(brokerDTO.web_admins) : brokerDTO.web_admins != null) return false;
@@ -151,6 +161,7 @@ public class BrokerDTO {
         result = 31 * result + (log_category != null ? log_category.hashCode() : 0);
         result = 31 * result + (services != null ? services.hashCode() : 0);
         result = 31 * result + (validation != null ? validation.hashCode() : 0);
+        result = 31 * result + (memory_limit != null ? memory_limit.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
@@ -71,4 +71,16 @@ public class BrokerStatusDTO extends ServiceStatusDTO {
      */
 	@XmlAttribute(name="connection_counter")
 	public long connection_counter;
+
+    /**
+     * The memory used by the swapped in messages of all the queues.
+     */
+	@XmlAttribute(name="memory_used")
+	public long memory_used;
+
+    /**
+     * The configured memory limit for the swapped in messages, -1 if not limited.
+     */
+	@XmlAttribute(name="memory_limit")
+	public long memory_limit;
 }
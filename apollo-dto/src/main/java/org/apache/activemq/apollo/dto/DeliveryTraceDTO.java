@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * <p>
+ *     The latencies of the stages which the messages sampled by the
+ *     virtual host's trace_sample_rate went through in a destination.
+ * </p>
+ */
+@XmlRootElement(name="delivery_trace")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class DeliveryTraceDTO {
+
+    /**
+     * The time from the producer's connection sending the message
+     * until the destination enqueued it.
+     */
+    @XmlElement(name="route_latency")
+    public TimeMetricDTO route_latency;
+
+    /**
+     * The time from the enqueue until the message was flushed to
+     * the store.
+     */
+    @XmlElement(name="store_latency")
+    public TimeMetricDTO store_latency;
+
+    /**
+     * The time spent loading swapped out messages back from the store.
+     */
+    @XmlElement(name="swap_in_latency")
+    public TimeMetricDTO swap_in_latency;
+
+    /**
+     * The time from the enqueue until the message was first dispatched
+     * to a consumer.
+     */
+    @XmlElement(name="dispatch_latency")
+    public TimeMetricDTO dispatch_latency;
+
+    /**
+     * The time from the first dispatch until the consumer acked the message.
+     */
+    @XmlElement(name="consumer_latency")
+    public TimeMetricDTO consumer_latency;
+
+    /**
+     * The time from the producer's connection sending the message
+     * until the consumer acked it.
+     */
+    @XmlElement(name="total_latency")
+    public TimeMetricDTO total_latency;
+
+}
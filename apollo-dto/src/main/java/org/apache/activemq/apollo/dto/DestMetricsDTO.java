@@ -20,6 +20,7 @@ package org.apache.activemq.apollo.dto;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
 /**
@@ -85,6 +86,21 @@ public class DestMetricsDTO {
     @XmlAttribute(name="dequeue_ts")
     public long dequeue_ts;
 
+    /**
+     * The amount of time messages spent in the destination
+     * before they were acked by a consumer, over the last
+     * 10 second window.
+     */
+    @XmlElement(name="dequeue_latency")
+    public TimeMetricDTO dequeue_latency;
+
+    /**
+     * The stage latencies of the messages which were sampled for tracing
+     * and acked in the last 10 seconds, not set if there were none.
+     */
+    @XmlElement(name="trace")
+    public DeliveryTraceDTO trace;
+
     /**
      * The total number of producers that have ever sent to
      * the destination.
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A group of dispatch queues which exchange messages and which
+ * the connection regroup assigned to the same dispatch thread.
+ * </p>
+ */
+@XmlRootElement(name = "flow_group")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class FlowGroupDTO {
+
+    /**
+     * The index of the dispatch thread the group was assigned to.
+     */
+    @XmlAttribute
+    public int thread;
+
+    /**
+     * The load of the group in bytes/second.
+     */
+    @XmlAttribute
+    public long load;
+
+    /**
+     * The labels of the dispatch queues in the group.
+     */
+    @XmlElement(name="member")
+    public List<String> members = new ArrayList<String>();
+
+}
@@ -115,6 +115,35 @@ public class QueueDTO extends StringIdDTO {
     @XmlAttribute(name="max_enqueue_rate")
     public String max_enqueue_rate;
 
+    /**
+     * If set to true, then messages with a priority higher
+     * than the default JMS priority of 4 are held in
+     * per priority dispatch lanes and get dispatched to
+     * consumers ahead of the normal priority messages
+     * even if those are still swapped out.
+     */
+    @XmlAttribute(name="priority_dispatch")
+    public Boolean priority_dispatch;
+
+    /**
+     * When priority dispatch is enabled, messages with a priority
+     * higher than this value get tracked in the dispatch lanes.
+     * Defaults to 4.
+     */
+    @XmlAttribute(name="priority_dispatch_threshold")
+    public Integer priority_dispatch_threshold;
+
+    /**
+     * If set to a value greater than 1, then the entries of the
+     * queue are sharded across that many partitions which get
+     * dispatched concurrently.  The messages of a producer
+     * always go to the same partition so their order is preserved,
+     * but there is no ordering between the messages of different
+     * producers.  Only takes effect when the queue is created.
+     */
+    @XmlAttribute(name="partitions")
+    public Integer partitions;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -137,6 +166,12 @@ public class QueueDTO extends StringIdDTO {
             return false;
         if (max_enqueue_rate != null ? !max_enqueue_rate.equals(queueDTO.max_enqueue_rate) : queueDTO.max_enqueue_rate != null)
             return false;
+        if (priority_dispatch != null ? !priority_dispatch.equals(queueDTO.priority_dispatch) : queueDTO.priority_dispatch != null)
+            return false;
+        if (priority_dispatch_threshold != null ? !priority_dispatch_threshold.equals(queueDTO.priority_dispatch_threshold) : queueDTO.priority_dispatch_threshold != null)
+            return false;
+        if (partitions != null ? !partitions.equals(queueDTO.partitions) : queueDTO.partitions != null)
+            return false;
         if (other != null ? !other.equals(queueDTO.other) : queueDTO.other != null) return false;
         if (persistent != null ? !persistent.equals(queueDTO.persistent) : queueDTO.persistent != null) return false;
         if (quota != null ? !quota.equals(queueDTO.quota) : queueDTO.quota != null) return false;
@@ -160,6 +195,9 @@ public class QueueDTO extends StringIdDTO {
         result = 31 * result + (fast_delivery_rate != null ? fast_delivery_rate.hashCode() : 0);
         result = 31 * result + (catchup_enqueue_rate != null ? catchup_enqueue_rate.hashCode() : 0);
         result = 31 * result + (max_enqueue_rate != null ? max_enqueue_rate.hashCode() : 0);
+        result = 31 * result + (priority_dispatch != null ? priority_dispatch.hashCode() : 0);
+        result = 31 * result + (priority_dispatch_threshold != null ? priority_dispatch_threshold.hashCode() : 0);
+        result = 31 * result + (partitions != null ? partitions.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
@@ -29,6 +29,13 @@ import java.util.List;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class QueueDestinationDTO extends DestinationDTO {
 
+    /**
+     * Set when the destination is one of the partitions
+     * of a partitioned queue.
+     */
+    @XmlAttribute
+    public Integer partition;
+
     public QueueDestinationDTO() {
     }
 
@@ -44,13 +51,16 @@ public class QueueDestinationDTO extends DestinationDTO {
         QueueDestinationDTO that = (QueueDestinationDTO) o;
 
         if (path != null ? !path.equals(that.path) : that.path != null) return false;
+        if (partition != null ? !partition.equals(that.partition) : that.partition != null) return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return path != null ? path.hashCode() : 0;
+        int result = path != null ? path.hashCode() : 0;
+        result = 31 * result + (partition != null ? partition.hashCode() : 0);
+        return result;
     }
 
     @Override
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * The results of the last connection regroup of a virtual host.
+ * </p>
+ */
+@XmlRootElement(name = "regroup_status")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RegroupStatusDTO {
+
+    /**
+     * When the last regroup was done.  In milliseconds since the epoch.
+     */
+    @XmlAttribute
+    public long timestamp;
+
+    /**
+     * The total rate in bytes/second of the sampled message flows.
+     */
+    @XmlAttribute(name="total_rate")
+    public long total_rate;
+
+    /**
+     * The rate in bytes/second of the message flows which cross
+     * from one dispatch thread to another.
+     */
+    @XmlAttribute(name="cross_thread_rate")
+    public long cross_thread_rate;
+
+    /**
+     * The load of the busiest dispatch thread divided by the
+     * average thread load.  1.0 means the load is perfectly balanced.
+     */
+    @XmlAttribute
+    public double imbalance;
+
+    /**
+     * The number of dispatch queues which were moved to
+     * a different thread.
+     */
+    @XmlAttribute
+    public int moves;
+
+    /**
+     * The assigned load of each dispatch thread in bytes/second.
+     */
+    @XmlElement(name="thread_load")
+    public List<Long> thread_loads = new ArrayList<Long>();
+
+    /**
+     * The groups of dispatch queues that were assigned to a thread.
+     */
+    @XmlElement(name="group")
+    public List<FlowGroupDTO> groups = new ArrayList<FlowGroupDTO>();
+
+}
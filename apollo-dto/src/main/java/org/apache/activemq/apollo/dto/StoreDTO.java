@@ -40,6 +40,28 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * When true, the flush delay is only the longest time a unit of
+     * work is delayed.  The actual delay is picked based on how quickly
+     * the consumers of the queues are dequeuing the enqueued messages.
+     */
+    @XmlAttribute(name="adaptive_flush_delay", required=false)
+    public Boolean adaptive_flush_delay;
+
+    /**
+     * The number of flush batches a store can be writing and syncing at
+     * the same time.
+     */
+    @XmlAttribute(name="flush_pipeline_depth", required=false)
+    public Integer flush_pipeline_depth;
+
+    /**
+     * Once a flush batch holds this much message data, further units of
+     * work go into the next batch.  Sizes like "4M" can be used.
+     */
+    @XmlAttribute(name="flush_batch_size", required=false)
+    public String flush_batch_size;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -49,12 +71,22 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (adaptive_flush_delay != null ? !adaptive_flush_delay.equals(storeDTO.adaptive_flush_delay) : storeDTO.adaptive_flush_delay != null)
+            return false;
+        if (flush_pipeline_depth != null ? !flush_pipeline_depth.equals(storeDTO.flush_pipeline_depth) : storeDTO.flush_pipeline_depth != null)
+            return false;
+        if (flush_batch_size != null ? !flush_batch_size.equals(storeDTO.flush_batch_size) : storeDTO.flush_batch_size != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (adaptive_flush_delay != null ? adaptive_flush_delay.hashCode() : 0);
+        result = 31 * result + (flush_pipeline_depth != null ? flush_pipeline_depth.hashCode() : 0);
+        result = 31 * result + (flush_batch_size != null ? flush_batch_size.hashCode() : 0);
+        return result;
     }
 }
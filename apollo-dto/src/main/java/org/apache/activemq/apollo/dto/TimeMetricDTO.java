@@ -21,8 +21,10 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.concurrent.TimeUnit;
+import org.apache.activemq.apollo.util.TimeMetric;
 
 /**
  *
@@ -58,6 +60,44 @@ public class TimeMetricDTO {
     @XmlAttribute
     public long min;
 
+    /**
+     * The time in nanoseconds which 50% of the events took at most
+     */
+    @XmlAttribute
+    public long p50;
+
+    /**
+     * The time in nanoseconds which 99% of the events took at most
+     */
+    @XmlAttribute
+    public long p99;
+
+    /**
+     * The time in nanoseconds which 99.9% of the events took at most
+     */
+    @XmlAttribute
+    public long p999;
+
+    /**
+     * The non empty buckets of the histogram of the event times
+     * as pairs of bucket index and count.  Used to aggregate the
+     * percentiles of several metrics.
+     */
+    @XmlElement(name="histogram")
+    public long[] histogram;
+
+    public static TimeMetricDTO create(TimeMetric m) {
+        TimeMetricDTO rc = new TimeMetricDTO();
+        rc.count = m.count();
+        rc.max = m.max();
+        rc.min = m.min();
+        rc.total = m.total();
+        rc.p50 = m.p50();
+        rc.p99 = m.p99();
+        rc.p999 = m.p999();
+        rc.histogram = m.histogram();
+        return rc;
+    }
 
     public float max(TimeUnit unit) {
         return ((float)max) / unit.toNanos(1);
@@ -76,5 +116,15 @@ public class TimeMetricDTO {
     public float frequency(TimeUnit unit) {
         return ((float)1) / avg(unit);
     }
+
+    public float p50(TimeUnit unit) {
+        return ((float)p50) / unit.toNanos(1);
+    }
+    public float p99(TimeUnit unit) {
+        return ((float)p99) / unit.toNanos(1);
+    }
+    public float p999(TimeUnit unit) {
+        return ((float)p999) / unit.toNanos(1);
+    }
     
 }
\ No newline at end of file
@@ -93,6 +93,13 @@ public class VirtualHostDTO extends ServiceDTO {
     @XmlElement(name="heap_bypass")
     public String heap_bypass;
 
+    /**
+     * If set to N, one out of every N messages sent to the virtual host
+     * gets the latencies of the stages it goes through in a queue traced.
+     */
+    @XmlAttribute(name="trace_sample_rate")
+    public Integer trace_sample_rate;
+
     /**
      * To hold any other non-matching XML elements
      */
@@ -124,6 +131,8 @@ public class VirtualHostDTO extends ServiceDTO {
             return false;
         if (store != null ? !store.equals(that.store) : that.store != null) return false;
         if (topics != null ? !topics.equals(that.topics) : that.topics != null) return false;
+        if (trace_sample_rate != null ? !trace_sample_rate.equals(that.trace_sample_rate) : that.trace_sample_rate != null)
+            return false;
 
         return true;
     }
@@ -143,6 +152,7 @@ public class VirtualHostDTO extends ServiceDTO {
         result = 31 * result + (authentication != null ? authentication.hashCode() : 0);
         result = 31 * result + (log_category != null ? log_category.hashCode() : 0);
         result = 31 * result + (heap_bypass != null ? heap_bypass.hashCode() : 0);
+        result = 31 * result + (trace_sample_rate != null ? trace_sample_rate.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
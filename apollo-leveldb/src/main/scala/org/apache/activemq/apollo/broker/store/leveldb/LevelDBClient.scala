@@ -192,6 +192,8 @@ class LevelDBClient(store: LevelDBStore) {
 
   def directory = config.directory
 
+  def log_directory = Option(config.log_directory).getOrElse(directory)
+
   /////////////////////////////////////////////////////////////////////
   //
   // Public interface used by the LevelDBStore
@@ -221,7 +223,7 @@ class LevelDBClient(store: LevelDBStore) {
   def snapshot_index_file(id: Long) = create_sequence_file(directory, id, INDEX_SUFFIX)
 
   def create_log: RecordLog = {
-    new RecordLog(directory, LOG_SUFFIX)
+    new RecordLog(log_directory, LOG_SUFFIX)
   }
 
   def log_size = {
@@ -278,6 +280,7 @@ class LevelDBClient(store: LevelDBStore) {
     log.sync = sync
     log.logSize = log_size
     log.verify_checksums = verify_checksums
+    log.mmap_sealed_logs = config.log_mmap.getOrElse(false)
     log.on_log_rotate = () => {
       // lets queue a request to checkpoint when
       // the logs rotate.. queue it on the GC thread since GC's lock
@@ -317,6 +320,20 @@ class LevelDBClient(store: LevelDBStore) {
     }
     version_file.write_text(STORE_SCHEMA_PREFIX + STORE_SCHEMA_VERSION)
 
+    // The index points at positions in the logs, so they can't be left
+    // behind when the log_directory changes.
+    val log_directory_file = directory / "log-directory.txt"
+    val log_path = log_directory.getCanonicalPath
+    if (log_directory_file.exists()) {
+      val previous = log_directory_file.read_text().trim()
+      if (previous != log_path) {
+        throw new Exception("Cannot open the store.  Its record logs are in " + previous + " but the log_directory is set to " + log_path + ".  Move the logs first.")
+      }
+    } else if (log_directory != directory && !find_sequence_files(directory, LOG_SUFFIX).isEmpty) {
+      throw new Exception("Cannot open the store.  Its record logs are in " + directory.getCanonicalPath + " but the log_directory is set to " + log_path + ".  Move the logs first.")
+    }
+    log_directory_file.write_text(log_path)
+
     val log_open_duration = time {
       retry {
         log.open
@@ -738,6 +755,10 @@ class LevelDBClient(store: LevelDBStore) {
     try {
       log.close
       directory.list_files.foreach(_.recursive_delete)
+      if (log_directory != directory) {
+        // Other files may share that directory.
+        find_sequence_files(log_directory, LOG_SUFFIX).values.foreach(_.delete)
+      }
       log_refs.clear()
     } finally {
       retry {
@@ -809,6 +830,7 @@ class LevelDBClient(store: LevelDBStore) {
   }
 
   def store(uows: Seq[LevelDBStore#DelayableUOW], callback: Runnable) {
+    var synced_later = false
     retry_using_index {
       log.appender {
         appender =>
@@ -893,6 +915,8 @@ class LevelDBClient(store: LevelDBStore) {
                             log_record.setExpiration(entry.expiration)
                           if (entry.redeliveries != 0)
                             log_record.setRedeliveries(entry.redeliveries)
+                          if (entry.priority != 0)
+                            log_record.setPriority(entry.priority)
 
                           appender.append(LOG_ADD_QUEUE_ENTRY, log_record.freeze().toUnframedBuffer)
 
@@ -915,43 +939,85 @@ class LevelDBClient(store: LevelDBStore) {
           }
           if (sync_needed && sync) {
             appender.flush
-            appender.force
+            val sync_executor = store.sync_executor
+            if (sync_executor != null) {
+              // Sync on a separate thread so that the next batch can get
+              // written in the meantime.
+              val offset = appender.flushed_offset.get
+              appender.retain
+              synced_later = true
+              sync_executor {
+                try {
+                  retry {
+                    appender.force_to(offset)
+                  }
+                } finally {
+                  appender.release
+                }
+                callback.run
+              }
+            } else {
+              appender.force
+            }
           }
       }
     }
-    callback.run
+    if (!synced_later) {
+      callback.run
+    }
   }
 
   val metric_load_from_index_counter = new TimeCounter
   var metric_load_from_index = metric_load_from_index_counter(false)
 
-  def loadMessages(requests: ListBuffer[(Long, AtomicReference[Object], (Option[MessageRecord]) => Unit)]): Unit = {
+  def decode_message(locator: AtomicReference[Object], data: Buffer) = {
+    val is = new DataByteArrayInputStream(data)
+    val pb = MessagePB.FACTORY.parseFramed(is)
+    val rc = PBSupport.from_pb(pb)
+    rc.buffer = is.readBuffer(is.available())
+    rc.locator = locator
+    if(pb.getCompression == 1) {
+      rc.buffer = Snappy.uncompress(rc.buffer)
+    }
+    rc
+  }
+
+  /**
+   * Loads a batch of messages.  Requests should be sorted by log position
+   * so that adjacent records can be read together.
+   */
+  def loadMessages(requests: Seq[(Long, AtomicReference[Object], (Option[MessageRecord]) => Unit)]): Unit = {
 
     val ro = new ReadOptions
     ro.verifyChecksums(verify_checksums)
     ro.fillCache(true)
 
+    def load(requests: Seq[(Long, AtomicReference[Object], (Option[MessageRecord]) => Unit)]) = {
+      val start = System.nanoTime
+      val records = log.read(requests.map(_._2.get().asInstanceOf[(Long, Int)]))
+      // The records get read together, so spread the time over them to
+      // keep reporting the per message load latency.  The read threads
+      // share the counter.
+      if( !requests.isEmpty ) {
+        val per_record = (System.nanoTime - start) / requests.size
+        metric_load_from_index_counter.synchronized {
+          requests.foreach { _ =>
+            metric_load_from_index_counter += per_record
+          }
+        }
+      }
+      requests.zip(records).map {
+        case ((_, locator, callback), data) =>
+          (data.map(decode_message(locator, _)), callback)
+      }
+    }
+
     val missing = retry_using_index {
       index.snapshot {
         snapshot =>
           ro.snapshot(snapshot)
-          requests.flatMap {
-            x =>
-              val (_, locator, callback) = x
-              val record = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data =>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
-                  rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
-                  rc
-                }
-              }
+          requests.zip(load(requests)).flatMap {
+            case (x, (record, callback)) =>
               if (record.isDefined) {
                 callback(record)
                 None
@@ -971,23 +1037,8 @@ class LevelDBClient(store: LevelDBStore) {
       index.snapshot {
         snapshot =>
           ro.snapshot(snapshot)
-          missing.foreach {
-            x =>
-              val (_, locator, callback) = x
-              val record: Option[MessageRecord] = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data=>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
-                  rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
-                  rc
-                }
-              }
+          load(missing).foreach {
+            case (record, callback) =>
               callback(record)
           }
       }
@@ -1056,6 +1107,12 @@ class LevelDBClient(store: LevelDBStore) {
                 }
               }
 
+              if (group.count == 1) {
+                group.max_expiration = entry.getExpiration
+              } else if (group.max_expiration != 0) {
+                group.max_expiration = if (entry.getExpiration == 0) 0 else entry.getExpiration.max(group.max_expiration)
+              }
+
               if (group.count == limit) {
                 rc += group
                 group = null
@@ -19,9 +19,10 @@ package org.apache.activemq.apollo.broker.store.leveldb
 
 import dto.{LevelDBStoreDTO, LevelDBStoreStatusDTO}
 import collection.Seq
+import collection.mutable.ListBuffer
 import org.fusesource.hawtdispatch._
 import java.util.concurrent._
-import atomic.{AtomicReference, AtomicLong}
+import atomic.{AtomicInteger, AtomicReference, AtomicLong}
 import org.apache.activemq.apollo.broker.store._
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.ListEventAggregator
@@ -36,6 +37,45 @@ import org.fusesource.hawtbuf.Buffer
  */
 object LevelDBStore extends Log {
   val DATABASE_LOCKED_WAIT_DELAY = 10 * 1000;
+  // Smallest batch of message loads worth handing to a separate read thread.
+  val MIN_LOAD_CHUNK_SIZE = 16
+  // Smallest batch of messages worth handing to a separate compression thread.
+  val MIN_COMPRESS_CHUNK_SIZE = 16
+  // Message bodies smaller than this are not worth compressing.
+  val MIN_COMPRESS_SIZE = 128
+  // Once the recent messages of a queue compress to more than this ratio of
+  // their size, it's messages are not compressed anymore...
+  val INCOMPRESSIBLE_RATIO = 0.9
+  // except for 1 in this many, to notice when they become compressible again.
+  val COMPRESS_PROBE_INTERVAL = 32
+}
+
+/**
+ * <p>
+ * Tracks how well the messages of a queue compress so that the
+ * compression of incompressible bodies, like already compressed or
+ * encrypted ones, can be skipped.
+ * </p>
+ */
+class CompressionStats {
+  import LevelDBStore._
+
+  // moving average of the compressed to original size ratio.
+  var ratio = 0.0
+  var skipped = 0L
+
+  def should_compress = this.synchronized {
+    if( ratio < INCOMPRESSIBLE_RATIO ) {
+      true
+    } else {
+      skipped += 1
+      skipped % COMPRESS_PROBE_INTERVAL == 0
+    }
+  }
+
+  def compressed(original:Int, compressed:Int) = this.synchronized {
+    ratio += (compressed.toDouble / original - ratio) / 8
+  }
 }
 
 /**
@@ -43,11 +83,18 @@ object LevelDBStore extends Log {
  */
 class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
+  import LevelDBStore._
+
   var next_queue_key = new AtomicLong(1)
   var next_msg_key = new AtomicLong(1)
 
   var write_executor: ExecutorService = _
+  // Syncs the log so that the write thread can move on to the next batch.
+  var sync_executor: ExecutorService = _
   var read_executor: ExecutorService = _
+  var compress_executor: ExecutorService = _
+  val compress_threads = Runtime.getRuntime.availableProcessors
+  var read_threads = 10
 
   var client: LevelDBClient = _
 
@@ -62,25 +109,119 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   def flush_delay = config.flush_delay.getOrElse(500)
 
+  override protected def adaptive_flush_delay = config.adaptive_flush_delay.getOrElse(false)
+
+  override protected def flush_pipeline_depth = config.flush_pipeline_depth.getOrElse(2)
+
+  override protected def flush_batch_size = Option(config.flush_batch_size).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(super.flush_batch_size)
+
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
 
-  override def on_store_requested(mr: MessageRecord) = {
-    if( client.snappy_compress_logs && mr.compressed==null ) {
+  val compression_stats_by_queue = new ConcurrentHashMap[Long, CompressionStats]()
+
+  def compression_stats(queue_key:Long):CompressionStats = {
+    var rc = compression_stats_by_queue.get(queue_key)
+    if( rc == null ) {
+      rc = new CompressionStats
+      val existing = compression_stats_by_queue.putIfAbsent(queue_key, rc)
+      if( existing != null ) {
+        rc = existing
+      }
+    }
+    rc
+  }
+
+  /**
+   * @return the message records of the batch which are worth compressing
+   *         along with the stats of the queue they are stored for.
+   */
+  def records_to_compress(uows: Seq[DelayableUOW]) = {
+    val rc = ListBuffer[(MessageRecord, CompressionStats)]()
+    if( client.snappy_compress_logs ) {
+      uows.foreach { uow =>
+        uow.actions.foreach { case (_, action) =>
+          val mr = action.message_record
+          if( mr!=null && mr.compressed==null && mr.buffer!=null && mr.buffer.length >= MIN_COMPRESS_SIZE ) {
+            val queue_key = action.enqueues.headOption.map(_.queue_key).getOrElse(-1L)
+            val stats = compression_stats(queue_key)
+            if( stats.should_compress ) {
+              rc += mr -> stats
+            }
+          }
+        }
+      }
+    }
+    rc
+  }
+
+  def compress(records: Seq[(MessageRecord, CompressionStats)]) = {
+    records.foreach { case (mr, stats) =>
       val compressed = Snappy.compress(mr.buffer)
+      stats.compressed(mr.buffer.length, compressed.length)
       if (compressed.length < mr.buffer.length) {
         mr.compressed = compressed
       }
     }
   }
 
+  /**
+   * A write which has to wait for the compression chunks of its batch
+   * before it can be handed to the write thread.
+   */
+  class OrderedWrite(chunks:Int, val task:Runnable) {
+    val remaining = new AtomicInteger(chunks)
+  }
+
+  // Writes are handed to the write thread in the order they were issued.
+  val ordered_writes = new java.util.ArrayDeque[OrderedWrite]()
+
+  def ordered_write(write:OrderedWrite):Unit = {
+    ordered_writes.synchronized {
+      ordered_writes.add(write)
+    }
+    if( write.remaining.get == 0 ) {
+      submit_ordered_writes
+    }
+  }
+
+  def ordered_write(task:Runnable):Unit = ordered_write(new OrderedWrite(0, task))
+
+  def chunk_done(write:OrderedWrite) = {
+    if( write.remaining.decrementAndGet() == 0 ) {
+      submit_ordered_writes
+    }
+  }
+
+  def submit_ordered_writes = ordered_writes.synchronized {
+    while( !ordered_writes.isEmpty && ordered_writes.peek.remaining.get == 0 ) {
+      write_executor.execute(ordered_writes.poll.task)
+    }
+  }
+
   protected def store(uows: Seq[DelayableUOW])(callback: => Unit) = {
-    write_executor {
+    // Compress the batch on the compression threads.  The last chunk to
+    // finish hands the batch to the write thread, unless an earlier
+    // batch is still being compressed.
+    val records = records_to_compress(uows)
+    val chunk_size = ((records.size + compress_threads - 1) / compress_threads).max(MIN_COMPRESS_CHUNK_SIZE)
+    val chunks = if( records.isEmpty ) Nil else records.grouped(chunk_size).toList
+    val write = new OrderedWrite(chunks.size, ^{
       client.store(uows, ^ {
         dispatch_queue {
           callback
         }
       })
+    })
+    ordered_write(write)
+    chunks.foreach { chunk =>
+      compress_executor {
+        try {
+          compress(chunk)
+        } finally {
+          chunk_done(write)
+        }
+      }
     }
   }
 
@@ -94,7 +235,22 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
           rc
         }
       })
-      read_executor = Executors.newFixedThreadPool(config.read_threads.getOrElse(10), new ThreadFactory() {
+      sync_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+        def newThread(r: Runnable) = {
+          val rc = new Thread(r, store_kind + " store io sync")
+          rc.setDaemon(true)
+          rc
+        }
+      })
+      compress_executor = Executors.newFixedThreadPool(compress_threads, new ThreadFactory() {
+        def newThread(r: Runnable) = {
+          val rc = new Thread(r, store_kind + " store compress")
+          rc.setDaemon(true)
+          rc
+        }
+      })
+      read_threads = config.read_threads.getOrElse(10)
+      read_executor = Executors.newFixedThreadPool(read_threads, new ThreadFactory() {
         def newThread(r: Runnable) = {
           val rc = new Thread(r, store_kind + " store io read")
           rc.setDaemon(true)
@@ -126,12 +282,21 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   protected def _stop(on_completed: Runnable) = {
     new Thread() {
       override def run = {
+        // The compression chunks hand their batches to the write thread
+        // and the write thread hands the syncs to the sync thread.
+        compress_executor.shutdown
+        compress_executor.awaitTermination(60, TimeUnit.SECONDS)
+        compress_executor = null
         write_executor.shutdown
         write_executor.awaitTermination(60, TimeUnit.SECONDS)
         write_executor = null
+        sync_executor.shutdown
+        sync_executor.awaitTermination(60, TimeUnit.SECONDS)
+        sync_executor = null
         read_executor.shutdown
         read_executor.awaitTermination(60, TimeUnit.SECONDS)
         read_executor = null
+        assert( ordered_writes.synchronized { ordered_writes.isEmpty } )
         client.stop
         on_completed.run
       }
@@ -166,7 +331,7 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
    * Deletes all stored data from the store.
    */
   def purge(callback: => Unit) = {
-    write_executor {
+    queue_update {
       client.purge()
       next_queue_key.set(1)
       next_msg_key.set(1)
@@ -174,6 +339,35 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  // The queue adds, removes and purges not yet applied to the index.
+  val pending_queue_updates = new AtomicInteger()
+
+  def queue_update(func: => Unit) = {
+    pending_queue_updates.incrementAndGet()
+    ordered_write(^{
+      try {
+        func
+      } finally {
+        pending_queue_updates.decrementAndGet()
+      }
+    })
+  }
+
+  /**
+   * Queue lookups run on the read threads, unless a queue update issued
+   * before them is still pending.  They then wait for it on the write
+   * thread so that they don't return stale results.
+   */
+  def queue_lookup(func: => Unit) = {
+    if( pending_queue_updates.get > 0 ) {
+      ordered_write(^{ func })
+    } else {
+      read_executor {
+        func
+      }
+    }
+  }
+
 
   def get_map_entry(key: Buffer)(callback: (Option[Buffer]) => Unit) = {
     read_executor {
@@ -197,7 +391,7 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def add_queue(record: QueueRecord)(callback: (Boolean) => Unit) = {
-    write_executor {
+    queue_update {
       client.add_queue(record, ^ {
         callback(true)
       })
@@ -205,7 +399,9 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def remove_queue(queueKey: Long)(callback: (Boolean) => Unit) = {
-    write_executor {
+    remove_flush_stats(queueKey)
+    compression_stats_by_queue.remove(queueKey)
+    queue_update {
       client.remove_queue(queueKey, ^ {
         callback(true)
       })
@@ -213,13 +409,13 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   }
 
   def get_queue(queueKey: Long)(callback: (Option[QueueRecord]) => Unit) = {
-    write_executor {
+    queue_lookup {
       callback(client.get_queue(queueKey))
     }
   }
 
   def list_queues(callback: (Seq[Long]) => Unit) = {
-    write_executor {
+    queue_lookup {
       callback(client.list_queues)
     }
   }
@@ -245,19 +441,27 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   def drain_loads = {
     var data = load_source.getData
     message_load_batch_size_counter += data.size
-    read_executor ^ {
-      client.loadMessages(data)
+    // Sort the loads by log position so adjacent records get read together
+    // and spread large batches over the read threads.
+    val sorted = data.sortBy(_._2.get().asInstanceOf[(Long, Int)]._1)
+    val chunk_size = ((sorted.size + read_threads - 1) / read_threads).max(MIN_LOAD_CHUNK_SIZE)
+    sorted.grouped(chunk_size).foreach { chunk =>
+      read_executor ^ {
+        client.loadMessages(chunk)
+      }
     }
   }
 
+  // The index scans run against a snapshot on the read threads so that
+  // recovering or swapping in queues does not hold up the stores.
   def list_queue_entry_ranges(queueKey: Long, limit: Int)(callback: (Seq[QueueEntryRange]) => Unit) = {
-    write_executor ^ {
+    read_executor ^ {
       callback(client.listQueueEntryGroups(queueKey, limit))
     }
   }
 
   def list_queue_entries(queueKey: Long, firstSeq: Long, lastSeq: Long)(callback: (Seq[QueueEntryRecord]) => Unit) = {
-    write_executor ^ {
+    read_executor ^ {
       callback(client.getQueueEntries(queueKey, firstSeq, lastSeq))
     }
   }
@@ -300,7 +504,7 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
             }.toSeq.flatMap {
               case (id, refs) =>
                 try {
-                  val file = LevelDBClient.create_sequence_file(client.directory, id, LevelDBClient.LOG_SUFFIX)
+                  val file = LevelDBClient.create_sequence_file(client.log_directory, id, LevelDBClient.LOG_SUFFIX)
                   val size = file.length()
                   Some(row_layout.format(
                     file.getName,
@@ -29,6 +29,8 @@ import org.apache.activemq.apollo.util.{Log, LRUCache}
 import org.fusesource.hawtdispatch.BaseRetained
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import java.util.TreeMap
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel.MapMode
 
 object RecordLog extends Log {
 
@@ -48,6 +50,7 @@ object RecordLog extends Log {
 
   val BUFFER_SIZE = 1024 * 512
   val BYPASS_BUFFER_SIZE = 1024 * 16
+  val MAX_COALESCED_READ = 1024 * 64
 
   case class LogInfo(file: File, position: Long, length: Long) {
     def limit = position + length
@@ -64,6 +67,35 @@ object RecordLog extends Log {
     in.readLong()
   }
 
+  // set once the JVM turns out not to support explicit unmapping.
+  @volatile
+  var unmap_unsupported = false
+
+  /**
+   * Unmaps a mapped file right away instead of leaving it to the GC, so
+   * that the space of deleted log files gets reclaimed.  This uses the
+   * JDK specific cleaner of the buffer and does nothing when it's not
+   * available.  The buffer must not be used afterwards.
+   */
+  def unmap(buffer: ByteBuffer): Unit = {
+    if (!unmap_unsupported) {
+      try {
+        val cleaner_method = buffer.getClass.getMethod("cleaner")
+        cleaner_method.setAccessible(true)
+        val cleaner = cleaner_method.invoke(buffer)
+        if (cleaner != null) {
+          val clean_method = cleaner.getClass.getMethod("clean")
+          clean_method.setAccessible(true)
+          clean_method.invoke(cleaner)
+        }
+      } catch {
+        case e: Throwable =>
+          unmap_unsupported = true
+          debug(e, "Can't unmap log files on this JVM, leaving it to the GC.")
+      }
+    }
+  }
+
 }
 
 case class RecordLog(directory: File, logSuffix: String) {
@@ -76,6 +108,7 @@ case class RecordLog(directory: File, logSuffix: String) {
   var current_appender: LogAppender = _
   var verify_checksums = false
   var sync = false
+  var mmap_sealed_logs = false
 
 
   val log_infos = new TreeMap[Long, LogInfo]()
@@ -144,6 +177,21 @@ case class RecordLog(directory: File, logSuffix: String) {
       }
     }
 
+    // How much of the log is known to be synced to disk.
+    @volatile var forced_offset = 0L
+
+    /**
+     * Forces the log unless a previous force already covered the first
+     * offset bytes of it.  Lets one sync complete several batches.
+     */
+    def force_to(offset: Long) = {
+      if (forced_offset < offset) {
+        val end = flushed_offset.get
+        force
+        forced_offset = end
+      }
+    }
+
     /**
      * returns the offset position of the data record.
      */
@@ -160,28 +208,31 @@ case class RecordLog(directory: File, logSuffix: String) {
       val cs: Int = checksum(data:_*)
       //      trace("Writing at: "+record_position+" len: "+data_length+" with checksum: "+cs)
 
-//      if (false && total_length > BYPASS_BUFFER_SIZE) {
-//
-//        // Write the header and flush..
-//        write_buffer.writeByte(LOG_HEADER_PREFIX)
-//        write_buffer.writeByte(id)
-//        write_buffer.writeInt(cs)
-//        write_buffer.writeInt(data_length)
-//
-//        append_offset += LOG_HEADER_SIZE
-//        flush
-//
-//        // Directly write the data to the channel since it's large.
-//        val buffer = data.toByteBuffer
-//        val pos = append_offset + LOG_HEADER_SIZE
-//        flushed_offset.addAndGet(buffer.remaining)
-//        channel.write(buffer, pos)
-//        if (buffer.hasRemaining) {
-//          throw new IOException("Short write")
-//        }
-//        append_offset += data_length
-//
-//      } else {
+      if (total_length > BYPASS_BUFFER_SIZE) {
+
+        // Large records are written straight from the caller's buffers using a
+        // gathering write so that we avoid copying them into the write buffer.
+        flush
+        val header = new DataByteArrayOutputStream(LOG_HEADER_SIZE)
+        header.writeByte(LOG_HEADER_PREFIX)
+        header.writeByte(id)
+        header.writeInt(cs)
+        header.writeInt(data_length)
+
+        val buffers = (header.toBuffer +: data).map(_.toByteBuffer).toArray
+        channel.position(append_offset)
+        var remaining = total_length.toLong
+        while (remaining > 0) {
+          val count = channel.write(buffers)
+          if (count <= 0) {
+            throw new IOException("Short write")
+          }
+          remaining -= count
+        }
+        append_offset += total_length
+        flushed_offset.addAndGet(total_length)
+
+      } else {
         write_buffer.writeByte(LOG_HEADER_PREFIX)
         write_buffer.writeByte(id)
         write_buffer.writeInt(cs)
@@ -191,7 +242,7 @@ case class RecordLog(directory: File, logSuffix: String) {
         }
 
         append_offset += total_length
-//      }
+      }
       (record_position, info)
     }
 
@@ -225,12 +276,50 @@ case class RecordLog(directory: File, logSuffix: String) {
     val fd = open
     val channel = fd.getChannel
 
+    // Only set for sealed log files which get mapped when they are checked
+    // into the reader cache.
+    @volatile
+    var mapped: ByteBuffer = null
+
+    def map = {
+      val size = channel.size()
+      if (size <= Int.MaxValue) {
+        mapped = channel.map(MapMode.READ_ONLY, 0, size)
+      }
+    }
+
     override def dispose() {
+      // All the readers have released the reader, so nothing uses the mapping.
+      val mapped = this.mapped
+      this.mapped = null
+      if (mapped != null) {
+        unmap(mapped)
+      }
       fd.close()
     }
 
     def check_read_flush(end_offset: Long) = {}
 
+    /**
+     * Fills the buffer with the file data at the offset, serving it
+     * from the mapped file when one is available.
+     */
+    def read_fully(buffer: Buffer, offset: Long): Boolean = {
+      val mapped = this.mapped
+      if (mapped != null) {
+        if (offset + buffer.length > mapped.limit) {
+          false
+        } else {
+          val bb = mapped.duplicate()
+          bb.position(offset.toInt)
+          bb.get(buffer.data, buffer.offset, buffer.length)
+          true
+        }
+      } else {
+        channel.read(buffer.toByteBuffer, offset) == buffer.length
+      }
+    }
+
     def read(record_position: Long, length: Int) = {
       val offset = record_position - position
       assert(offset >= 0)
@@ -240,19 +329,18 @@ case class RecordLog(directory: File, logSuffix: String) {
       if (verify_checksums) {
 
         val record = new Buffer(LOG_HEADER_SIZE + length)
-        if (channel.read(record.toByteBuffer, offset) != record.length) {
+        if (!read_fully(record, offset)) {
           throw new IOException("short record at position: " + record_position + " in file: " + file + ", offset: " + offset)
         }
 
         def record_is_not_changing = {
-          using(open) {
+          // Mapped logs are sealed so there is no need to read the record again.
+          mapped != null || using(open) {
             fd =>
               val channel = fd.getChannel
               val new_record = new Buffer(LOG_HEADER_SIZE + length)
               channel.read(new_record.toByteBuffer, offset)
-              var same = record == new_record
-              println(same)
-              same
+              record == new_record
           }
         }
 
@@ -280,7 +368,7 @@ case class RecordLog(directory: File, logSuffix: String) {
         data
       } else {
         val record = new Buffer(length)
-        if (channel.read(record.toByteBuffer, offset+LOG_HEADER_SIZE) != record.length) {
+        if (!read_fully(record, offset+LOG_HEADER_SIZE)) {
           throw new IOException("short record at position: " + record_position + " in file: " + file + ", offset: " + offset)
         }
         record
@@ -290,7 +378,7 @@ case class RecordLog(directory: File, logSuffix: String) {
     def read(record_position: Long) = {
       val offset = record_position - position
       val header = new Buffer(LOG_HEADER_SIZE)
-      channel.read(header.toByteBuffer, offset)
+      read_fully(header, offset)
       val is = header.bigEndianEditor();
       val prefix = is.readByte()
       if (prefix != LOG_HEADER_PREFIX) {
@@ -302,7 +390,7 @@ case class RecordLog(directory: File, logSuffix: String) {
       val length = is.readInt()
       val data = new Buffer(length)
 
-      if (channel.read(data.toByteBuffer, offset + LOG_HEADER_SIZE) != length) {
+      if (!read_fully(data, offset + LOG_HEADER_SIZE)) {
         throw new IOException("short record")
       }
 
@@ -497,6 +585,9 @@ case class RecordLog(directory: File, logSuffix: String) {
             var reader = reader_cache.get(info.file)
             if (reader == null) {
               reader = LogReader(info.file, info.position)
+              if (mmap_sealed_logs) {
+                reader.map
+              }
               reader_cache.put(info.file, reader)
             }
             reader.retain()
@@ -516,6 +607,50 @@ case class RecordLog(directory: File, logSuffix: String) {
     get_reader(pos)(_.read(pos))
   }
 
+  /**
+   * Reads a batch of records which should be sorted by log position.  Runs of
+   * adjacent records in the same log file are loaded with a single read and
+   * sliced into separate buffers.
+   */
+  def read(locations: Seq[(Long, Int)]): Seq[Option[Buffer]] = {
+    val rc = new Array[Option[Buffer]](locations.size)
+    var i = 0
+    while (i < locations.size) {
+      val (start, first_length) = locations(i)
+      var end = start + LOG_HEADER_SIZE + first_length
+      var j = i + 1
+      // Individual reads are needed to verify each record's checksum.
+      if (!verify_checksums) {
+        val boundary = log_mutex.synchronized {
+          Option(log_infos.higherKey(start)).map(_.longValue).getOrElse(Long.MaxValue)
+        }
+        var done = false
+        while (!done && j < locations.size) {
+          val (pos, length) = locations(j)
+          val next_end = end + LOG_HEADER_SIZE + length
+          if (pos == end && next_end <= boundary && next_end - start <= MAX_COALESCED_READ) {
+            end = next_end
+            j += 1
+          } else {
+            done = true
+          }
+        }
+      }
+
+      if (j == i + 1) {
+        rc(i) = read(start, first_length)
+      } else {
+        val span = read(start, (end - start - LOG_HEADER_SIZE).toInt)
+        for (k <- i until j) {
+          val (pos, length) = locations(k)
+          rc(k) = span.map(span => new Buffer(span.data, span.offset + (pos - start).toInt, length))
+        }
+      }
+      i = j
+    }
+    rc
+  }
+
   def read(pos: Long, length: Int) = {
     get_reader(pos)(_.read(pos, length))
   }
@@ -34,6 +34,14 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute
     public File directory;
 
+    /**
+     * The directory holding the record logs.  Defaults to the store's
+     * directory.  Pointing it at a different disk than the index keeps
+     * the sequential log writes from competing with index IO.
+     */
+    @XmlAttribute(name="log_directory")
+    public File log_directory;
+
     @XmlAttribute(name="read_threads")
     public Integer read_threads;
 
@@ -52,6 +60,9 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="log_size")
     public String log_size;
 
+    @XmlAttribute(name="log_mmap")
+    public Boolean log_mmap;
+
     @XmlAttribute(name="index_max_open_files")
     public Integer index_max_open_files;
 
@@ -85,6 +96,7 @@ public class LevelDBStoreDTO extends StoreDTO {
         LevelDBStoreDTO that = (LevelDBStoreDTO) o;
 
         if (directory != null ? !directory.equals(that.directory) : that.directory != null) return false;
+        if (log_directory != null ? !log_directory.equals(that.log_directory) : that.log_directory != null) return false;
         if (index_block_restart_interval != null ? !index_block_restart_interval.equals(that.index_block_restart_interval) : that.index_block_restart_interval != null)
             return false;
         if (index_block_size != null ? !index_block_size.equals(that.index_block_size) : that.index_block_size != null)
@@ -99,6 +111,7 @@ public class LevelDBStoreDTO extends StoreDTO {
             return false;
         if (index_factory != null ? !index_factory.equals(that.index_factory) : that.index_factory != null) return false;
         if (log_size != null ? !log_size.equals(that.log_size) : that.log_size != null) return false;
+        if (log_mmap != null ? !log_mmap.equals(that.log_mmap) : that.log_mmap != null) return false;
         if (paranoid_checks != null ? !paranoid_checks.equals(that.paranoid_checks) : that.paranoid_checks != null)
             return false;
         if (read_threads != null ? !read_threads.equals(that.read_threads) : that.read_threads != null) return false;
@@ -113,12 +126,14 @@ public class LevelDBStoreDTO extends StoreDTO {
     public int hashCode() {
         int result = super.hashCode();
         result = 31 * result + (directory != null ? directory.hashCode() : 0);
+        result = 31 * result + (log_directory != null ? log_directory.hashCode() : 0);
         result = 31 * result + (read_threads != null ? read_threads.hashCode() : 0);
         result = 31 * result + (index_factory != null ? index_factory.hashCode() : 0);
         result = 31 * result + (sync != null ? sync.hashCode() : 0);
         result = 31 * result + (paranoid_checks != null ? paranoid_checks.hashCode() : 0);
         result = 31 * result + (verify_checksums != null ? verify_checksums.hashCode() : 0);
         result = 31 * result + (log_size != null ? log_size.hashCode() : 0);
+        result = 31 * result + (log_mmap != null ? log_mmap.hashCode() : 0);
         result = 31 * result + (index_max_open_files != null ? index_max_open_files.hashCode() : 0);
         result = 31 * result + (index_block_restart_interval != null ? index_block_restart_interval.hashCode() : 0);
         result = 31 * result + (index_write_buffer_size != null ? index_write_buffer_size.hashCode() : 0);
@@ -677,6 +677,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
           message.getSize
       }
       delivery.uow = uow
+      delivery.trace_received = host.sample_trace
 
       if( message.isResponseRequired ) {
         delivery.ack = { (consumed, uow) =>
@@ -870,7 +871,7 @@ class OpenwireProtocolHandler extends ProtocolHandler {
         case null=> null
         case x=>
           try {
-            SelectorParser.parse(x.toString)
+            SelectorParser.compile(x.toString)
           } catch {
             case e:FilterException =>
               fail("Invalid selector expression: "+e.getMessage)
@@ -937,6 +938,9 @@ class OpenwireProtocolHandler extends ProtocolHandler {
       }
     }
 
+    override def message_selector = selector_expression
+    override def matches_ignoring_selector(delivery:Delivery) = delivery.message.protocol eq OpenwireProtocol
+
     class OpenwireConsumerSession(val producer:DeliveryProducer) extends DeliverySession with SessionSinkFilter[Delivery] {
       producer.dispatch_queue.assertExecuting()
       retain
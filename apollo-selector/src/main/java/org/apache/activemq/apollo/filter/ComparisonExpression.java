@@ -72,8 +72,18 @@ public abstract class ComparisonExpression extends BinaryExpression implements B
 
     static class LikeExpression extends UnaryExpression implements BooleanExpression {
 
+        private static final int REGEX = 0;
+        private static final int EQUALS = 1;
+        private static final int STARTS_WITH = 2;
+        private static final int ENDS_WITH = 3;
+        private static final int CONTAINS = 4;
+
         Pattern likePattern;
 
+        // Simple patterns are matched without running the regular expression.
+        int matchKind = REGEX;
+        String literal;
+
         /**
          * @param left
          */
@@ -108,6 +118,24 @@ public abstract class ComparisonExpression extends BinaryExpression implements B
             regexp.append("\\z"); // The end of the input
 
             likePattern = Pattern.compile(regexp.toString(), Pattern.DOTALL);
+
+            if (escape == -1 && like.indexOf('_') < 0) {
+                boolean leading = like.startsWith("%");
+                boolean trailing = like.length() > (leading ? 1 : 0) && like.endsWith("%");
+                String middle = like.substring(leading ? 1 : 0, like.length() - (trailing ? 1 : 0));
+                if (middle.indexOf('%') < 0) {
+                    literal = middle;
+                    if (leading && trailing) {
+                        matchKind = CONTAINS;
+                    } else if (leading) {
+                        matchKind = ENDS_WITH;
+                    } else if (trailing) {
+                        matchKind = STARTS_WITH;
+                    } else {
+                        matchKind = EQUALS;
+                    }
+                }
+            }
         }
 
         /**
@@ -134,7 +162,25 @@ public abstract class ComparisonExpression extends BinaryExpression implements B
                 // identifiers. LIKE attemped on: '" + rv.getClass());
             }
 
-            return likePattern.matcher((String)rv).matches() ? Boolean.TRUE : Boolean.FALSE;
+            String value = (String)rv;
+            boolean matches;
+            switch (matchKind) {
+            case EQUALS:
+                matches = value.equals(literal);
+                break;
+            case STARTS_WITH:
+                matches = value.startsWith(literal);
+                break;
+            case ENDS_WITH:
+                matches = value.endsWith(literal);
+                break;
+            case CONTAINS:
+                matches = value.indexOf(literal) >= 0;
+                break;
+            default:
+                matches = likePattern.matcher(value).matches();
+            }
+            return matches ? Boolean.TRUE : Boolean.FALSE;
         }
 
         public boolean matches(Filterable message) throws FilterException {
@@ -0,0 +1,414 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.HashMap;
+
+/**
+ * Rewrites a parsed selector expression tree into an equivalent tree
+ * which is cheaper to evaluate.  It folds constant sub expressions,
+ * short circuits logic expressions with constant operands, replaces
+ * comparisons between a property and a numeric or string constant with
+ * primitive comparisons and makes properties which are referenced
+ * several times get looked up only once per message.
+ *
+ * The compiled tree is evaluated exactly like the original one and
+ * keeps the original tree's string form.  The expression passed in is
+ * modified in place, so it should not be shared.
+ */
+public final class ExpressionCompiler {
+
+    private ExpressionCompiler() {
+    }
+
+    public static BooleanExpression compile(BooleanExpression expression) {
+        String text = expression.toString();
+
+        HashMap<String, Integer> references = new HashMap<String, Integer>();
+        countProperties(expression, references);
+        HashMap<String, Integer> slots = new HashMap<String, Integer>();
+        for (String name : references.keySet()) {
+            if (references.get(name).intValue() > 1) {
+                slots.put(name, Integer.valueOf(slots.size()));
+            }
+        }
+
+        Expression rc = optimize(expression, slots);
+        if (!(rc instanceof BooleanExpression)) {
+            rc = expression;
+        }
+        return new CompiledExpression(text, (BooleanExpression)rc, slots.size());
+    }
+
+    private static void countProperties(Expression expression, HashMap<String, Integer> references) {
+        if (expression instanceof PropertyExpression) {
+            String name = ((PropertyExpression)expression).getName();
+            Integer count = references.get(name);
+            references.put(name, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+        } else if (expression instanceof BinaryExpression) {
+            countProperties(((BinaryExpression)expression).getLeft(), references);
+            countProperties(((BinaryExpression)expression).getRight(), references);
+        } else if (expression instanceof UnaryExpression) {
+            countProperties(((UnaryExpression)expression).getRight(), references);
+        }
+    }
+
+    private static Expression optimize(Expression expression, HashMap<String, Integer> slots) {
+        if (expression instanceof PropertyExpression) {
+            String name = ((PropertyExpression)expression).getName();
+            Integer slot = slots.get(name);
+            if (slot != null) {
+                return new CachedPropertyExpression(name, slot.intValue());
+            }
+            return expression;
+        }
+
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression)expression;
+            binary.setLeft(optimize(binary.getLeft(), slots));
+            binary.setRight(optimize(binary.getRight(), slots));
+
+            if (binary.getLeft() instanceof ConstantExpression && binary.getRight() instanceof ConstantExpression) {
+                return fold(expression);
+            }
+            if (binary instanceof LogicExpression) {
+                return shortCircuit((LogicExpression)binary);
+            }
+            if (binary instanceof ComparisonExpression) {
+                return PropertyComparison.create((ComparisonExpression)binary);
+            }
+            return expression;
+        }
+
+        if (expression instanceof UnaryExpression) {
+            UnaryExpression unary = (UnaryExpression)expression;
+            unary.setRight(optimize(unary.getRight(), slots));
+            if (unary.getRight() instanceof ConstantExpression) {
+                return fold(expression);
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * Evaluates an expression whose operands are all constants.
+     */
+    private static Expression fold(Expression expression) {
+        Object value;
+        try {
+            value = expression.evaluate(null);
+        } catch (Exception e) {
+            // Leave it to fail at evaluation time like it did before.
+            return expression;
+        }
+        if (expression instanceof BooleanExpression) {
+            if (value == null) {
+                return ConstantExpression.NULL;
+            } else if (value == Boolean.TRUE) {
+                return ConstantExpression.TRUE;
+            } else if (value == Boolean.FALSE) {
+                return ConstantExpression.FALSE;
+            }
+            return expression;
+        }
+        return new ConstantExpression(value);
+    }
+
+    /**
+     * Only a constant left operand can be short circuited without changing
+     * how the expression handles null values.
+     */
+    private static Expression shortCircuit(LogicExpression logic) {
+        if (!(logic.getLeft() instanceof ConstantExpression)) {
+            return logic;
+        }
+        Object value = ((ConstantExpression)logic.getLeft()).getValue();
+        if ("AND".equals(logic.getExpressionSymbol())) {
+            if (value == null) {
+                return ConstantExpression.NULL;
+            } else if (value == Boolean.FALSE) {
+                return ConstantExpression.FALSE;
+            } else if (value == Boolean.TRUE) {
+                return logic.getRight();
+            }
+        } else if ("OR".equals(logic.getExpressionSymbol())) {
+            if (value == Boolean.TRUE) {
+                return ConstantExpression.TRUE;
+            } else if (value == Boolean.FALSE) {
+                return logic.getRight();
+            }
+        }
+        return logic;
+    }
+
+    /**
+     * The root of a compiled expression.
+     */
+    static final class CompiledExpression implements BooleanExpression {
+
+        private final String text;
+        private final BooleanExpression expression;
+        private final int slots;
+
+        CompiledExpression(String text, BooleanExpression expression, int slots) {
+            this.text = text;
+            this.expression = expression;
+            this.slots = slots;
+        }
+
+        BooleanExpression getExpression() {
+            return expression;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            return expression.evaluate(slots == 0 ? message : new PropertyCache(message, slots));
+        }
+
+        public boolean matches(Filterable message) throws FilterException {
+            return expression.matches(slots == 0 ? message : new PropertyCache(message, slots));
+        }
+
+        public String toString() {
+            return text;
+        }
+
+        public int hashCode() {
+            return text.hashCode();
+        }
+
+        public boolean equals(Object o) {
+            if (o == null || !this.getClass().equals(o.getClass())) {
+                return false;
+            }
+            return text.equals(o.toString());
+        }
+    }
+
+    /**
+     * Wraps the message being evaluated to remember the values of the
+     * properties which the expression references several times.
+     */
+    static final class PropertyCache implements Filterable {
+
+        private static final Object UNSET = new Object();
+
+        private final Filterable message;
+        private final Object[] values;
+
+        PropertyCache(Filterable message, int slots) {
+            this.message = message;
+            this.values = new Object[slots];
+            for (int i = 0; i < slots; i++) {
+                values[i] = UNSET;
+            }
+        }
+
+        Object getProperty(int slot, String name) {
+            Object value = values[slot];
+            if (value == UNSET) {
+                value = message.getProperty(name);
+                values[slot] = value;
+            }
+            return value;
+        }
+
+        public <T> T getBodyAs(Class<T> type) throws FilterException {
+            return message.getBodyAs(type);
+        }
+
+        public Object getProperty(String name) {
+            return message.getProperty(name);
+        }
+
+        public Object getLocalConnectionId() {
+            return message.getLocalConnectionId();
+        }
+    }
+
+    static final class CachedPropertyExpression extends PropertyExpression {
+
+        private final int slot;
+
+        CachedPropertyExpression(String name, int slot) {
+            super(name);
+            this.slot = slot;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            if (message instanceof PropertyCache) {
+                return ((PropertyCache)message).getProperty(slot, getName());
+            }
+            return super.evaluate(message);
+        }
+    }
+
+    /**
+     * Compares a property against a constant.  String property values, which
+     * is what text based protocols provide, are converted to the constant's
+     * type once and compared as primitives.  Other values use the generic
+     * comparison.
+     */
+    static final class PropertyComparison extends ComparisonExpression {
+
+        private static final int EQUAL = 0;
+        private static final int GREATER_THAN = 1;
+        private static final int GREATER_THAN_EQUAL = 2;
+        private static final int LESS_THAN = 3;
+        private static final int LESS_THAN_EQUAL = 4;
+
+        private static final int INTEGER = 0;
+        private static final int LONG = 1;
+        private static final int DOUBLE = 2;
+        private static final int STRING = 3;
+
+        private final String symbol;
+        private final int operator;
+        private final Expression property;
+        private final Object constant;
+        private final boolean constantOnLeft;
+        private final int type;
+        private final long longValue;
+        private final double doubleValue;
+
+        static Expression create(ComparisonExpression comparison) {
+            String symbol = comparison.getExpressionSymbol();
+            int operator;
+            if ("=".equals(symbol)) {
+                operator = EQUAL;
+            } else if (">".equals(symbol)) {
+                operator = GREATER_THAN;
+            } else if (">=".equals(symbol)) {
+                operator = GREATER_THAN_EQUAL;
+            } else if ("<".equals(symbol)) {
+                operator = LESS_THAN;
+            } else if ("<=".equals(symbol)) {
+                operator = LESS_THAN_EQUAL;
+            } else {
+                return comparison;
+            }
+
+            Expression left = comparison.getLeft();
+            Expression right = comparison.getRight();
+            boolean constantOnLeft;
+            Object constant;
+            if (left instanceof PropertyExpression && right instanceof ConstantExpression) {
+                constantOnLeft = false;
+                constant = ((ConstantExpression)right).getValue();
+            } else if (left instanceof ConstantExpression && right instanceof PropertyExpression) {
+                constantOnLeft = true;
+                constant = ((ConstantExpression)left).getValue();
+            } else {
+                return comparison;
+            }
+
+            int type;
+            if (constant instanceof Integer) {
+                type = INTEGER;
+            } else if (constant instanceof Long) {
+                type = LONG;
+            } else if (constant instanceof Double) {
+                type = DOUBLE;
+            } else if (constant instanceof String && operator == EQUAL) {
+                type = STRING;
+            } else {
+                return comparison;
+            }
+            return new PropertyComparison(comparison, operator, constantOnLeft, constant, type);
+        }
+
+        private PropertyComparison(ComparisonExpression comparison, int operator, boolean constantOnLeft, Object constant, int type) {
+            super(comparison.getLeft(), comparison.getRight());
+            this.symbol = comparison.getExpressionSymbol();
+            this.operator = operator;
+            this.constantOnLeft = constantOnLeft;
+            this.property = constantOnLeft ? comparison.getRight() : comparison.getLeft();
+            this.constant = constant;
+            this.type = type;
+            this.longValue = constant instanceof Number ? ((Number)constant).longValue() : 0;
+            this.doubleValue = constant instanceof Number ? ((Number)constant).doubleValue() : 0;
+        }
+
+        public Object evaluate(Filterable message) throws FilterException {
+            Object value = property.evaluate(message);
+            if (value == null) {
+                return operator == EQUAL ? Boolean.FALSE : null;
+            }
+
+            if (value instanceof String) {
+                int answer;
+                try {
+                    switch (type) {
+                    case INTEGER:
+                        answer = compare(Integer.parseInt((String)value), longValue);
+                        break;
+                    case LONG:
+                        answer = compare(Long.parseLong((String)value), longValue);
+                        break;
+                    case DOUBLE:
+                        answer = Double.compare(Double.parseDouble((String)value), doubleValue);
+                        break;
+                    default:
+                        return value.equals(constant) ? Boolean.TRUE : Boolean.FALSE;
+                    }
+                } catch (NumberFormatException e) {
+                    return Boolean.FALSE;
+                }
+                if (constantOnLeft) {
+                    answer = -answer;
+                }
+                return asBoolean(answer) ? Boolean.TRUE : Boolean.FALSE;
+            }
+
+            Object lv = constantOnLeft ? constant : value;
+            Object rv = constantOnLeft ? value : constant;
+            if (operator == EQUAL) {
+                if (lv.equals(rv)) {
+                    return Boolean.TRUE;
+                }
+                if (lv instanceof Comparable && rv instanceof Comparable) {
+                    return compare((Comparable)lv, (Comparable)rv);
+                }
+                return Boolean.FALSE;
+            }
+            return compare((Comparable)lv, (Comparable)rv);
+        }
+
+        private static int compare(long lv, long rv) {
+            return lv < rv ? -1 : (lv == rv ? 0 : 1);
+        }
+
+        protected boolean asBoolean(int answer) {
+            switch (operator) {
+            case EQUAL:
+                return answer == 0;
+            case GREATER_THAN:
+                return answer > 0;
+            case GREATER_THAN_EQUAL:
+                return answer >= 0;
+            case LESS_THAN:
+                return answer < 0;
+            default:
+                return answer <= 0;
+            }
+        }
+
+        public String getExpressionSymbol() {
+            return symbol;
+        }
+    }
+
+}
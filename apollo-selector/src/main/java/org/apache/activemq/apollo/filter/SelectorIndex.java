@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Evaluates the selectors of many subscribers against a message at once.
+ * Subscribers using the same selector instance, which is what the
+ * SelectorParser cache hands out for the same selector text, share a
+ * single evaluation.  Selectors which require a property to equal a
+ * string, or to be IN a list of strings, are indexed by that property so
+ * that only the selectors which can match the message's value for the
+ * property get evaluated.
+ *
+ * The index is not thread safe.
+ *
+ * @param <T> the type of the subscriber keys
+ */
+public class SelectorIndex<T> {
+
+    static final class Group<T> {
+        final BooleanExpression expression;
+        final List<T> keys = new ArrayList<T>(1);
+
+        Group(BooleanExpression expression) {
+            this.expression = expression;
+        }
+    }
+
+    static final class PropertyIndex<T> {
+        final String property;
+        final HashMap<String, List<Group<T>>> byValue = new HashMap<String, List<Group<T>>>();
+        // Equality selectors can match a non string value too.
+        final List<Group<T>> equality = new ArrayList<Group<T>>();
+
+        PropertyIndex(String property) {
+            this.property = property;
+        }
+    }
+
+    private final IdentityHashMap<BooleanExpression, Group<T>> groups = new IdentityHashMap<BooleanExpression, Group<T>>();
+    private final HashMap<String, PropertyIndex<T>> indexes = new HashMap<String, PropertyIndex<T>>();
+    private final List<Group<T>> unindexed = new ArrayList<Group<T>>();
+
+    public void add(T key, BooleanExpression selector) {
+        Group<T> group = groups.get(selector);
+        if (group == null) {
+            group = new Group<T>(selector);
+            groups.put(selector, group);
+            index(group);
+        }
+        group.keys.add(key);
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * @return the keys of all the subscribers whose selector matches the message.
+     */
+    public Set<T> matching(Filterable message) throws FilterException {
+        HashSet<T> rc = new HashSet<T>();
+        for (Group<T> group : unindexed) {
+            evaluate(group, message, rc);
+        }
+        for (PropertyIndex<T> index : indexes.values()) {
+            Object value = message.getProperty(index.property);
+            if (value instanceof String) {
+                List<Group<T>> candidates = index.byValue.get(value);
+                if (candidates != null) {
+                    for (Group<T> group : candidates) {
+                        evaluate(group, message, rc);
+                    }
+                }
+            } else if (value != null) {
+                for (Group<T> group : index.equality) {
+                    evaluate(group, message, rc);
+                }
+            }
+            // Otherwise the indexed predicate can't be true.
+        }
+        return rc;
+    }
+
+    private void evaluate(Group<T> group, Filterable message, Set<T> rc) throws FilterException {
+        if (group.expression.matches(message)) {
+            rc.addAll(group.keys);
+        }
+    }
+
+    private void index(Group<T> group) {
+        Expression expression = group.expression;
+        if (expression instanceof ExpressionCompiler.CompiledExpression) {
+            expression = ((ExpressionCompiler.CompiledExpression)expression).getExpression();
+        }
+
+        ArrayList<Expression> conjuncts = new ArrayList<Expression>();
+        collectConjuncts(expression, conjuncts);
+        for (Expression conjunct : conjuncts) {
+            if (conjunct instanceof ComparisonExpression && "=".equals(((ComparisonExpression)conjunct).getExpressionSymbol())) {
+                ComparisonExpression comparison = (ComparisonExpression)conjunct;
+                String property = null;
+                Object value = null;
+                if (comparison.getLeft() instanceof PropertyExpression && comparison.getRight() instanceof ConstantExpression) {
+                    property = ((PropertyExpression)comparison.getLeft()).getName();
+                    value = ((ConstantExpression)comparison.getRight()).getValue();
+                } else if (comparison.getRight() instanceof PropertyExpression && comparison.getLeft() instanceof ConstantExpression) {
+                    property = ((PropertyExpression)comparison.getRight()).getName();
+                    value = ((ConstantExpression)comparison.getLeft()).getValue();
+                }
+                if (property != null && value instanceof String) {
+                    PropertyIndex<T> index = index(property);
+                    add(index, (String)value, group);
+                    index.equality.add(group);
+                    return;
+                }
+            } else if (conjunct instanceof UnaryExpression.InExpression) {
+                UnaryExpression.InExpression in = (UnaryExpression.InExpression)conjunct;
+                Collection<Object> values = in.getInList();
+                if (!in.isNot() && values != null && in.getRight() instanceof PropertyExpression) {
+                    PropertyIndex<T> index = index(((PropertyExpression)in.getRight()).getName());
+                    for (Object value : new HashSet<Object>(values)) {
+                        add(index, (String)value, group);
+                    }
+                    return;
+                }
+            }
+        }
+        unindexed.add(group);
+    }
+
+    private PropertyIndex<T> index(String property) {
+        PropertyIndex<T> index = indexes.get(property);
+        if (index == null) {
+            index = new PropertyIndex<T>(property);
+            indexes.put(property, index);
+        }
+        return index;
+    }
+
+    private void add(PropertyIndex<T> index, String value, Group<T> group) {
+        List<Group<T>> list = index.byValue.get(value);
+        if (list == null) {
+            list = new ArrayList<Group<T>>(1);
+            index.byValue.put(value, list);
+        }
+        list.add(group);
+    }
+
+    private static void collectConjuncts(Expression expression, List<Expression> rc) {
+        if (expression instanceof LogicExpression && "AND".equals(((LogicExpression)expression).getExpressionSymbol())) {
+            collectConjuncts(((LogicExpression)expression).getLeft(), rc);
+            collectConjuncts(((LogicExpression)expression).getRight(), rc);
+        } else {
+            rc.add(expression);
+        }
+    }
+
+}
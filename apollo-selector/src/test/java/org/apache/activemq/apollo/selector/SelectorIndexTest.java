@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.selector;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.filter.Filterable;
+import org.apache.activemq.apollo.filter.SelectorIndex;
+
+public class SelectorIndexTest extends TestCase {
+
+    static class MockMessage implements Filterable {
+
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+
+        MockMessage(Object... properties) {
+            for (int i = 0; i < properties.length; i += 2) {
+                this.properties.put((String)properties[i], properties[i + 1]);
+            }
+        }
+
+        public <T> T getBodyAs(Class<T> type) throws FilterException {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return properties.get(name);
+        }
+
+        public Object getLocalConnectionId() {
+            return null;
+        }
+    }
+
+    String[] selectors = new String[] {
+        "region = 'X'",
+        "region = 'X'",
+        "region = 'Y' AND size > 10",
+        "'Z' = region",
+        "region IN ('X', 'Y')",
+        "region NOT IN ('X')",
+        "size > 10",
+        "region = 'X' OR region = 'Y'",
+        "size = '5' AND region = 'Y'",
+    };
+
+    protected SelectorIndex<Integer> createIndex(boolean compiled) throws FilterException {
+        SelectorIndex<Integer> index = new SelectorIndex<Integer>();
+        for (int i = 0; i < selectors.length; i++) {
+            index.add(i, compiled ? SelectorParser.compile(selectors[i]) : SelectorParser.parse(selectors[i]));
+        }
+        return index;
+    }
+
+    protected void assertSameMatches(MockMessage message) throws FilterException {
+        Set<Integer> expected = new HashSet<Integer>();
+        for (int i = 0; i < selectors.length; i++) {
+            if (SelectorParser.parse(selectors[i]).matches(message)) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, createIndex(false).matching(message));
+        assertEquals(expected, createIndex(true).matching(message));
+    }
+
+    public void testMatchesLikeIndividualSelectors() throws Exception {
+        assertSameMatches(new MockMessage());
+        assertSameMatches(new MockMessage("region", "X"));
+        assertSameMatches(new MockMessage("region", "Y", "size", "20"));
+        assertSameMatches(new MockMessage("region", "Y", "size", "5"));
+        assertSameMatches(new MockMessage("region", "Z"));
+        assertSameMatches(new MockMessage("region", "W", "size", 50));
+        assertSameMatches(new MockMessage("region", 7));
+    }
+
+    public void testSharedSelectorsMatchTogether() throws Exception {
+        Set<Integer> matching = createIndex(true).matching(new MockMessage("region", "X"));
+        assertTrue(matching.contains(0));
+        assertTrue(matching.contains(1));
+        assertFalse(matching.contains(3));
+    }
+}
@@ -426,6 +426,36 @@ public class SelectorTest extends TestCase {
         assertSelector(message, "quote NOT LIKE '!_%' ESCAPE '!'", true);
 
         assertSelector(message, "punctuation LIKE '!#$&()*+,-./:;<=>?@[\\]^`{|}~'", true);
+
+        assertSelector(message, "location LIKE 'Lon%'", true);
+        assertSelector(message, "location LIKE 'on%'", false);
+        assertSelector(message, "location LIKE '%ndo%'", true);
+        assertSelector(message, "location LIKE '%xyz%'", false);
+        assertSelector(message, "location LIKE 'London'", true);
+        assertSelector(message, "location LIKE '%'", true);
+        assertSelector(message, "location LIKE 'L%n'", true);
+    }
+
+    public void testStringPropertyComparisons() throws Exception {
+        MockMessage message = createMessage();
+        message.setStringProperty("size", "10");
+        message.setStringProperty("price", "2.5");
+
+        assertSelector(message, "size = 10", true);
+        assertSelector(message, "size > 5", true);
+        assertSelector(message, "size < 5", false);
+        assertSelector(message, "5 < size", true);
+        assertSelector(message, "10 >= size", true);
+        assertSelector(message, "size <> 10", false);
+        assertSelector(message, "size > 5000000000", false);
+        assertSelector(message, "price > 2.0", true);
+        assertSelector(message, "price = 2", false);
+        assertSelector(message, "missing > 5", false);
+        assertSelector(message, "NOT (missing > 5)", false);
+        assertSelector(message, "size = '10'", true);
+        assertSelector(message, "size > 5 AND size < 20 OR size = 100", true);
+        assertSelector(message, "1 = 1 AND size > 5", true);
+        assertSelector(message, "1 = 2 OR size > 50", false);
     }
 
     public void testInvalidSelector() throws Exception {
@@ -473,6 +503,10 @@ public class SelectorTest extends TestCase {
         assertTrue("Created a valid selector", selector != null);
         boolean value = selector.matches(message);
         assertEquals("Selector for: " + text, expected, value);
+
+        BooleanExpression compiled = SelectorParser.compile(text);
+        assertEquals("Compiled selector for: " + text, expected, compiled.matches(message));
+        assertEquals(selector.toString(), compiled.toString());
     }
 
     protected MockMessage createMessage(String subject) {
@@ -32,11 +32,99 @@ import Buffer._
 import org.apache.activemq.apollo.util._
 import org.apache.activemq.apollo.broker.store.{DirectBuffer, DirectBufferAllocator, MessageRecord}
 import org.apache.activemq.apollo.util.Log._
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * <p>
+ * Holds on to the read buffers released by idle connections so that they
+ * can be reused by the next connection which has data to read.
+ * </p>
+ */
+class ReadBufferPool(val buffer_size:Int, val max_pooled:Int) {
+
+  private val buffers = new ConcurrentLinkedQueue[Array[Byte]]()
+  private val pooled = new AtomicInteger()
+
+  def acquire:Array[Byte] = {
+    val rc = buffers.poll
+    if( rc == null ) {
+      new Array[Byte](buffer_size)
+    } else {
+      pooled.decrementAndGet
+      rc
+    }
+  }
+
+  def release(buffer:Array[Byte]):Unit = {
+    if( buffer.length == buffer_size ) {
+      if( pooled.incrementAndGet <= max_pooled ) {
+        buffers.offer(buffer)
+      } else {
+        pooled.decrementAndGet
+      }
+    }
+  }
+}
 
 object StompCodec extends Log {
 
+  // The maximum number of read buffers kept around per buffer size.
+  var max_pooled_read_buffers = 1024
+  val read_buffer_pools = new ConcurrentHashMap[Int, ReadBufferPool]()
+
+  def read_buffer_pool(size:Int):ReadBufferPool = {
+    var rc = read_buffer_pools.get(size)
+    if( rc == null ) {
+      rc = new ReadBufferPool(size, max_pooled_read_buffers)
+      val existing = read_buffer_pools.putIfAbsent(size, rc)
+      if( existing != null ) {
+        rc = existing
+      }
+    }
+    rc
+  }
+
   var max_command_length = 20
 
+  def write_headers(headers:HeaderMap, os:DataOutput) = {
+    for( (key, value) <- headers ) {
+      key.writeTo(os)
+      os.write(COLON)
+      value.writeTo(os)
+      os.write(NEWLINE)
+    }
+  }
+
+  /**
+   * Encodes everything in the frame which follows the action line.  Frames with
+   * zero copy content are not supported.
+   */
+  def encode_tail(frame:StompFrame, os:DataOutput) = {
+    // Write any updated headers first...
+    write_headers(frame.updated_headers, os)
+
+    // we can optimize a little if the headers and content are in the same buffer..
+    if( frame.are_headers_in_content_buffer ) {
+
+      val offset = frame.headers.head._1.offset;
+      val buffer1 = frame.headers.head._1;
+      val buffer2 = frame.content.asInstanceOf[BufferContent].content;
+      val length = (buffer2.offset-buffer1.offset)+buffer2.length
+      os.write( buffer1.data, offset, length)
+
+    } else {
+      write_headers(frame.headers, os)
+      os.write(NEWLINE)
+      frame.content match {
+        case x:BufferContent=>
+          x.content.writeTo(os)
+        case _=>
+      }
+    }
+    END_OF_FRAME_BUFFER.writeTo(os)
+  }
+
   def encode(message: StompFrameMessage):MessageRecord = {
     val frame = message.frame
 
@@ -206,44 +294,32 @@ class StompCodec extends ProtocolCodec {
     frame.action.writeTo(os)
     os.write(NEWLINE)
 
-    // Write any updated headers first...
-    if( !frame.updated_headers.isEmpty ) {
-      for( (key, value) <- frame.updated_headers ) {
-        key.writeTo(os)
-        os.write(COLON)
-        value.writeTo(os)
-        os.write(NEWLINE)
-      }
-    }
-
-    // we can optimize a little if the headers and content are in the same buffer..
-    if( frame.are_headers_in_content_buffer ) {
+    val shared = frame.base
+    val tail = if( shared!=null ) shared.shared_encoding else null
+    if( tail!=null ) {
 
-      val offset = frame.headers.head._1.offset;
-      val buffer1 = frame.headers.head._1;
-      val buffer2 = frame.content.asInstanceOf[BufferContent].content;
-      val length = (buffer2.offset-buffer1.offset)+buffer2.length
-      os.write( buffer1.data, offset, length)
-      END_OF_FRAME_BUFFER.writeTo(os)
-
-    } else {
-      for( (key, value) <- frame.headers ) {
+      // Only the headers added for this delivery still need encoding.
+      var appended = frame.updated_headers
+      while( !(appended eq shared.updated_headers) && !appended.isEmpty ) {
+        val (key, value) = appended.head
         key.writeTo(os)
         os.write(COLON)
         value.writeTo(os)
         os.write(NEWLINE)
+        appended = appended.tail
       }
-      os.write(NEWLINE)
+      tail.writeTo(os)
 
+    } else {
       frame.content match {
         case x:ZeroCopyContent=>
+          write_headers(frame.updated_headers, os)
+          write_headers(frame.headers, os)
+          os.write(NEWLINE)
           assert(next_write_direct==null)
           next_write_direct = x.zero_copy_buffer
-        case x:BufferContent=>
-          x.content.writeTo(os)
-          END_OF_FRAME_BUFFER.writeTo(os)
         case _=>
-          END_OF_FRAME_BUFFER.writeTo(os)
+          encode_tail(frame, os)
       }
     }
   }
@@ -305,9 +381,28 @@ class StompCodec extends ProtocolCodec {
   var read_buffer_size = 1024*64
   var read_channel:ReadableByteChannel = null
 
-  var read_buffer = ByteBuffer.allocate(read_buffer_size)
+  // Lazily taken from the read buffer pool and handed back once the
+  // connection goes idle.
+  var read_buffer:ByteBuffer = null
   var read_end = 0
   var read_start = 0
+  // Set once a frame sliced from the read buffer was kept by the protocol
+  // handler.  Such a buffer is never written over or pooled again.
+  var read_buffer_shared = false
+  // The last frame handed out.  Frames are handled before the next read,
+  // so if the handler did not release it by then, it kept it.
+  var handed_out:StompFrame = null
+
+  /**
+   * Lets the protocol handler tell the codec that it's done with a frame
+   * and did not keep any reference to it, so that the read buffer it
+   * was sliced from can be reused.
+   */
+  def release(frame:StompFrame) = {
+    if( frame eq handed_out ) {
+      handed_out = null
+    }
+  }
 
   var last_read_io_size = 0
 
@@ -317,6 +412,14 @@ class StompCodec extends ProtocolCodec {
   var next_action:FrameReader = read_action
   var trim = true
 
+  // The action and headers of the frame being read.  They are slices of
+  // the read buffer until the frame is complete.
+  var frame_action:AsciiBuffer = null
+  var frame_headers:HeaderMapBuffer = null
+  // The index in the read buffer of the first colon of the header line
+  // being read, or -1 if it was not found yet.
+  var line_colon = -1
+
   def setReadableByteChannel(channel: ReadableByteChannel) = {
     this.read_channel = channel
     if( this.read_channel.isInstanceOf[SocketChannel] ) {
@@ -326,6 +429,9 @@ class StompCodec extends ProtocolCodec {
 
   def unread(buffer: Array[Byte]) = {
     assert(read_counter == 0)
+    if( read_buffer == null ) {
+      read_buffer = ByteBuffer.wrap(read_buffer_pool(read_buffer_size).acquire)
+    }
     read_buffer.put(buffer)
     read_counter += buffer.length
   }
@@ -336,6 +442,14 @@ class StompCodec extends ProtocolCodec {
 
   override def read():Object = {
 
+    if( handed_out!=null ) {
+      read_buffer_shared = true
+      handed_out = null
+    }
+    if( read_buffer!=null ) {
+      reuse_consumed_read_buffer
+    }
+
     var command:Object = null
     while( command==null ) {
       // do we need to read in more data???
@@ -349,48 +463,34 @@ class StompCodec extends ProtocolCodec {
         }
         read_direct_pos += last_read_io_size
         read_counter += last_read_io_size
-      } else if (read_end == read_buffer.position() ) {
-
-          // do we need a new data buffer to read data into??
-          if (read_buffer.remaining() == 0) {
-
-              // How much data is still not consumed by the wireformat
-              var size = read_end - read_start
-
-              var new_capacity = if(read_start == 0) {
-                size+read_buffer_size
-              } else {
-                if (size > read_buffer_size) {
-                  size+read_buffer_size
-                } else {
-                  read_buffer_size
-                }
-              }
-
-              var new_buffer = new Array[Byte](new_capacity)
-
-              if (size > 0) {
-                  System.arraycopy(read_buffer.array(), read_start, new_buffer, 0, size)
-              }
-
-              read_buffer = ByteBuffer.wrap(new_buffer)
-              read_buffer.position(size)
-              read_start = 0
-              read_end = size
+      } else if ( read_buffer == null || read_end == read_buffer.position() ) {
+
+          if( read_buffer == null ) {
+            read_buffer = ByteBuffer.wrap(read_buffer_pool(read_buffer_size).acquire)
+          } else if (read_buffer.remaining() == 0) {
+            // do we need a new data buffer to read data into??
+            move_read_buffer
           }
 
           // Try to fill the buffer with data from the socket..
-          var p = read_buffer.position()
           last_read_io_size = read_channel.read(read_buffer)
           if (last_read_io_size == -1) {
               throw new EOFException("Peer disconnected")
           } else if (last_read_io_size == 0) {
+              release_idle_read_buffer
               return null
           }
           read_counter += last_read_io_size
       }
 
       command = next_action(read_buffer)
+      if( command!=null ) {
+        handed_out = command.asInstanceOf[StompFrame]
+        frame_action = null
+        frame_headers = null
+      } else {
+        reuse_consumed_read_buffer
+      }
 
       // Sanity checks to make sure the wireformat is behaving as expected.
       assert(read_start <= read_end)
@@ -399,20 +499,122 @@ class StompCodec extends ProtocolCodec {
     return command
   }
 
-  def read_line(buffer:ByteBuffer, max:Int, errorMessage:String):Buffer = {
+  def reuse_consumed_read_buffer = {
+    if( !read_buffer_shared && frame_action==null && read_start == read_buffer.position() ) {
+      // Everything was consumed.. start filling the buffer from the
+      // beginning again.
+      read_buffer.clear()
+      read_start = 0
+      read_end = 0
+    }
+  }
+
+  /**
+   * Moves the data not yet consumed into a new buffer.  The buffer is grown
+   * when the partially read frame already fills it.
+   */
+  def move_read_buffer = {
+    val old_data = read_buffer.array()
+    val keep_from = if( frame_action!=null && (frame_action.data eq old_data) ) {
+      frame_action.offset
+    } else {
+      read_start
+    }
+
+    // How much data is still not consumed by the wireformat
+    val size = read_buffer.position() - keep_from
+
+    val new_capacity = if(keep_from == 0) {
+      size+read_buffer_size
+    } else {
+      if (size > read_buffer_size) {
+        size+read_buffer_size
+      } else {
+        read_buffer_size
+      }
+    }
+
+    val new_data = if( new_capacity == read_buffer_size ) {
+      read_buffer_pool(read_buffer_size).acquire
+    } else {
+      new Array[Byte](new_capacity)
+    }
+
+    if (size > 0) {
+        System.arraycopy(old_data, keep_from, new_data, 0, size)
+    }
+    rebase(frame_action, old_data, new_data, keep_from)
+    if( frame_headers!=null ) {
+      rebase(frame_headers, old_data, new_data, keep_from)
+    }
+    if( !read_buffer_shared ) {
+      read_buffer_pool(read_buffer_size).release(old_data)
+    }
+
+    read_buffer = ByteBuffer.wrap(new_data)
+    read_buffer_shared = false
+    read_buffer.position(size)
+    read_start -= keep_from
+    read_end -= keep_from
+    if( line_colon >= 0 ) {
+      line_colon -= keep_from
+    }
+  }
+
+  /**
+   * Hands the read buffer back to the pool when no partially read data is
+   * left in it so that idle connections don't hold on to one.  A shared
+   * buffer is kept since the frames sliced from it already hold on to it.
+   */
+  def release_idle_read_buffer = {
+    if( !read_buffer_shared && frame_action==null && read_direct==null && read_start == read_buffer.position() ) {
+      read_buffer_pool(read_buffer_size).release(read_buffer.array())
+      read_buffer = null
+      read_start = 0
+      read_end = 0
+    }
+  }
+
+  // Buffers which were already moved are skipped so that a buffer shared
+  // by several fields is only moved once.
+  def rebase(buffer:Buffer, from:Array[Byte], to:Array[Byte], shift:Int):Unit = {
+    if( buffer!=null && (buffer.data eq from) ) {
+      buffer.data = to
+      buffer.offset -= shift
+    }
+  }
+
+  def rebase(headers:HeaderMapBuffer, from:Array[Byte], to:Array[Byte], shift:Int):Unit = {
+    headers.foreach { x=> rebase(x._1, from, to, shift); rebase(x._2, from, to, shift) }
+  }
+
+  /**
+   * Reads the next line.  When find_colon is set, the first colon of the
+   * line is looked for in the same scan and stored in line_colon.
+   */
+  def read_line(buffer:ByteBuffer, max:Int, errorMessage:String, find_colon:Boolean=false):Buffer = {
       val read_limit = buffer.position
-      while( read_end < read_limit ) {
-        if( buffer.array()(read_end) =='\n') {
-          var rc = new Buffer(buffer.array, read_start, read_end-read_start)
-          read_end += 1
-          read_start = read_end
-          return rc
-        }
-        if (max != -1 && read_end-read_start > max) {
-            throw new IOException(errorMessage)
-        }
-        read_end += 1
+      // Don't scan past the point where the line would be too long.
+      val scan_limit = if( max == -1 ) read_limit else read_limit.min(read_start+max+2)
+      var end = if( find_colon && line_colon < 0 ) {
+        ByteScanner.indexOf(buffer, read_end, scan_limit, COLON, NEWLINE)
+      } else {
+        ByteScanner.indexOf(buffer, read_end, scan_limit, NEWLINE)
+      }
+      if( end >= 0 && buffer.array()(end) == COLON ) {
+        line_colon = end
+        end = ByteScanner.indexOf(buffer, end+1, scan_limit, NEWLINE)
+      }
+      if( end >= 0 ) {
+        var rc = new Buffer(buffer.array, read_start, end-read_start)
+        read_end = end + 1
+        read_start = read_end
+        return rc
       }
+      if( max != -1 && scan_limit-read_start > max+1 ) {
+          throw new IOException(errorMessage)
+      }
+      read_end = scan_limit
       return null
   }
 
@@ -424,15 +626,19 @@ class StompCodec extends ProtocolCodec {
           action = action.trim()
       }
       if (action.length() > 0) {
-          next_action = read_headers(action.ascii)
+          frame_action = action.ascii
+          frame_headers = new HeaderMapBuffer()
+          next_action = read_headers(frame_action, frame_headers)
       }
     }
     null
   }
 
   def read_headers(action:AsciiBuffer, headers:HeaderMapBuffer=new HeaderMapBuffer()):FrameReader = (buffer)=> {
-    var line = read_line(buffer, max_header_length, "The maximum header length was exceeded")
+    var line = read_line(buffer, max_header_length, "The maximum header length was exceeded", true)
     while( line !=null ) {
+      val colon = line_colon
+      line_colon = -1
       if( line.trim().length > 0 ) {
 
         if (max_headers != -1 && headers.size > max_headers) {
@@ -440,7 +646,7 @@ class StompCodec extends ProtocolCodec {
         }
 
         try {
-            val seperatorIndex = line.indexOf(COLON)
+            val seperatorIndex = if( colon < 0 ) -1 else colon - line.offset
             if( seperatorIndex<0 ) {
                 println("===")
                 println(new AsciiBuffer(buffer.array(), 0, read_buffer_size))
@@ -461,7 +667,7 @@ class StompCodec extends ProtocolCodec {
               throw new IOException("Unable to parser header line [" + line + "]")
         }
 
-        line = read_line(buffer, max_header_length, "The maximum header length was exceeded")
+        line = read_line(buffer, max_header_length, "The maximum header length was exceeded", true)
       } else {
         val contentLength = get(headers, CONTENT_LENGTH)
         if (contentLength.isDefined) {
@@ -583,15 +789,14 @@ class StompCodec extends ProtocolCodec {
 
   def read_to_null(buffer:ByteBuffer):Buffer = {
       val read_limit = buffer.position
-      while( read_end < read_limit ) {
-        if( buffer.array()(read_end) ==0) {
-          var rc = new Buffer(buffer.array, read_start, read_end-read_start)
-          read_end += 1
-          read_start = read_end
-          return rc
-        }
-        read_end += 1
+      val end = ByteScanner.indexOf(buffer, read_end, read_limit, 0.toByte)
+      if( end >= 0 ) {
+        var rc = new Buffer(buffer.array, read_start, end-read_start)
+        read_end = end + 1
+        read_start = read_end
+        return rc
       }
+      read_end = read_limit
       return null
   }
 
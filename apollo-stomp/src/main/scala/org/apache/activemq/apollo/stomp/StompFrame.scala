@@ -60,17 +60,32 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
    */
   var persistent = false
 
-  for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-    header match {
-      case (MESSAGE_ID, value) =>
+  // Walk the updated headers and then the original headers without building
+  // any intermediate lists.  The first occurrence of a header wins.
+  {
+    var found_id, found_priority, found_expiration, found_persistent = false
+    var list = frame.updated_headers
+    var next = frame.headers
+    while( !list.isEmpty || !next.isEmpty ) {
+      if( list.isEmpty ) {
+        list = next
+        next = Nil
+      }
+      val (key, value) = list.head
+      if( !found_id && key == MESSAGE_ID ) {
         id = value
-      case (PRIORITY, value) =>
+        found_id = true
+      } else if( !found_priority && key == PRIORITY ) {
         priority = java.lang.Integer.parseInt(value).toByte
-      case (EXPIRES, value) =>
+        found_priority = true
+      } else if( !found_expiration && key == EXPIRES ) {
         expiration = java.lang.Long.parseLong(value)
-      case (PERSISTENT, value) =>
+        found_expiration = true
+      } else if( !found_persistent && key == PERSISTENT ) {
         persistent = java.lang.Boolean.parseBoolean(value)
-      case _ =>
+        found_persistent = true
+      }
+      list = list.tail
     }
   }
 
@@ -111,27 +126,18 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
     id.slice(id.offset, pos).toString
   }
 
-  /* avoid paying the price of creating the header index. lots of times we don't need it */
-  lazy val headerIndex: Map[AsciiBuffer, AsciiBuffer] =  {
-    var rc = Map[AsciiBuffer, AsciiBuffer]()
-    for( header <- (frame.updated_headers ::: frame.headers).reverse ) {
-      rc += (header._1 -> header._2)
-    }
-    rc
-  }
-
   def getProperty(name: String):AnyRef = {
     (name match {
       // TODO: handle more of the JMS Types that ActiveMQ 5 supports.
       case "JMSMessageID" =>
-        Some(id)
+        id
       case "JMSType" =>
-        headerIndex.get(ascii("type"))
+        frame.header(ascii("type"))
       case _=>
-        headerIndex.get(ascii(name))
+        frame.header(ascii(name))
     }) match {
-      case Some(rc) => rc.utf8.toString
-      case None => null
+      case null => null
+      case rc => rc.utf8.toString
     }
   }
 
@@ -149,6 +155,9 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
  */
 object StompFrame extends Sizer[StompFrame] {
   def size(value:StompFrame) = value.size
+
+  // Larger frames are not worth keeping a second encoded copy of.
+  val MAX_SHARED_ENCODING_SIZE = 1024*64
 }
 
 /**
@@ -273,13 +282,96 @@ case class StompFrame(action:AsciiBuffer, headers:HeaderMap=Nil, content:StompCo
      size_of_original_headers + 1 + content.length
   }
 
-  def header(name:AsciiBuffer) = {
-    updated_headers.filter( _._1 == name ).headOption.orElse(
-      headers.filter( _._1 == name ).headOption
-    ).map(_._2).getOrElse(null)
+  def header(name:AsciiBuffer):AsciiBuffer = {
+    var rc = find_header(updated_headers, name)
+    if( rc==null ) {
+      rc = find_header(headers, name)
+    }
+    rc
   }
 
-  def append_headers(value:HeaderMap) = StompFrame(action, headers, content, value ::: updated_headers)
+  private def find_header(headers:HeaderMap, name:AsciiBuffer):AsciiBuffer = {
+    var i = headers
+    while( !i.isEmpty ) {
+      if( i.head._1 == name ) {
+        return i.head._2
+      }
+      i = i.tail
+    }
+    null
+  }
+
+  /**
+   * The frame this frame was created from by appending headers.
+   */
+  var base:StompFrame = null
+
+  /**
+   * Creates a frame with the headers added for a delivery.  Appending to
+   * a frame which was itself created by this method replaces it, so it
+   * must not get encoded.
+   */
+  def append_headers(value:HeaderMap) = {
+    val rc = StompFrame(action, headers, content, value ::: updated_headers)
+    if( base!=null ) {
+      rc.base = base
+    } else {
+      rc.base = this
+      derived
+    }
+    rc
+  }
+
+  // The number of frames based on this one which still need to get encoded
+  // and the encoding they share.  Guarded by this frame's lock.
+  private var pending_encodes = 0
+  private[stomp] var encoded_tail:Buffer = null
+
+  private def derived = this.synchronized {
+    pending_encodes += 1
+  }
+
+  private def encode_done = {
+    if( pending_encodes > 0 ) {
+      pending_encodes -= 1
+    }
+    if( pending_encodes == 0 ) {
+      encoded_tail = null
+    }
+  }
+
+  /**
+   * When a frame gets fanned out to many subscribers, the encoding of
+   * everything after the action line is kept so that it can be shared by
+   * all the frames based on it.  It's dropped once all of them have been
+   * encoded so that it does not stay around, unaccounted for, for as long
+   * as a queue holds the message.  Called once per encode of a frame
+   * based on this one.
+   *
+   * @return the shared encoding or null if it should be encoded directly.
+   */
+  def shared_encoding:Buffer = this.synchronized {
+    if( encoded_tail==null && pending_encodes > 1 && (content.isInstanceOf[BufferContent] || content == NilContent) && content.length <= StompFrame.MAX_SHARED_ENCODING_SIZE ) {
+      val os = new DataByteArrayOutputStream(size)
+      StompCodec.encode_tail(this, os)
+      encoded_tail = os.toBuffer
+    }
+    val rc = encoded_tail
+    encode_done
+    rc
+  }
+
+  /**
+   * Has to be called when a frame created by append_headers gets dropped
+   * without being encoded.
+   */
+  def discard = {
+    if( base!=null ) {
+      base.synchronized {
+        base.encode_done
+      }
+    }
+  }
 
   def retain = content.retain
   def release = content.release
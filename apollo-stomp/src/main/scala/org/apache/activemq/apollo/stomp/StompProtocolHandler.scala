@@ -303,11 +303,20 @@ class StompProtocolHandler extends ProtocolHandler {
           trace("%s: ACK failed, invalid message id: %s, dest: %s".format(security_context.remote_address, msgid, addresses.mkString(",")))
         } else {
           consumer_acks = not_acked
+          // Apply a cumulative ack in a single store unit of work.
+          val batch_uow = if( uow==null && acked.size > 1 && host.store!=null ) {
+            host.store.create_uow
+          } else {
+            uow
+          }
           acked.foreach{case (id, delivery)=>
             if( delivery.ack!=null ) {
-              delivery.ack(consumed, uow)
+              delivery.ack(consumed, batch_uow)
             }
           }
+          if( batch_uow ne uow ) {
+            batch_uow.release
+          }
         }
 
         if( protocol_version eq V1_0 ) {
@@ -407,16 +416,22 @@ class StompProtocolHandler extends ProtocolHandler {
         StompFrame(MESSAGE, headers, BufferContent(body))
       }
 
+      // The headers get appended in one go so that the frame is only
+      // counted once by the frame it's based on.
+      var headers:HeaderMap = Nil
       if( subscription_id != None ) {
-        frame = frame.append_headers((SUBSCRIPTION, subscription_id.get)::Nil)
+        headers ::= (SUBSCRIPTION, subscription_id.get)
       }
       if( config.add_redeliveries_header!=null && delivery.redeliveries > 0) {
         val header = encode_header(config.add_redeliveries_header)
         val value = ascii(delivery.redeliveries.toString())
-        frame = frame.append_headers((header, value)::Nil)
+        headers ::= (header, value)
       }
       if( include_seq.isDefined ) {
-        frame = frame.append_headers((include_seq.get, ascii(delivery.seq.toString))::Nil)
+        headers ::= (include_seq.get, ascii(delivery.seq.toString))
+      }
+      if( !headers.isEmpty ) {
+        frame = frame.append_headers(headers)
       }
       messages_sent += 1
       frame
@@ -433,6 +448,7 @@ class StompProtocolHandler extends ProtocolHandler {
       credit_window_filter.disable
       sink_manager.close(consumer_sink, (frame)=>{
         // No point in sending the frame down to the socket..
+        frame.discard
       })
       super.dispose()
     }
@@ -448,7 +464,7 @@ class StompProtocolHandler extends ProtocolHandler {
     def match_from_seq(delivery:Delivery)= delivery.seq >= from_seq
     def match_from_tail(delivery:Delivery)= delivery.seq >= starting_seq
 
-    val matchers = {
+    val matchers_ignoring_selector = {
       var l = ListBuffer[(Delivery)=>Boolean]()
       if( from_seq > 0 ) {
         l += match_from_seq
@@ -456,13 +472,21 @@ class StompProtocolHandler extends ProtocolHandler {
       if( start_from_tail ) {
         l += match_from_tail
       }
-      if( selector!=null ) {
-        l += match_selector 
-      }
       l.toArray
     }
 
-    def matches(delivery:Delivery):Boolean = {
+    val matchers = if( selector!=null ) {
+      matchers_ignoring_selector :+ (match_selector _)
+    } else {
+      matchers_ignoring_selector
+    }
+
+    def matches(delivery:Delivery):Boolean = matches(matchers, delivery)
+
+    override def message_selector = if( selector!=null ) selector._2 else null
+    override def matches_ignoring_selector(delivery:Delivery) = matches(matchers_ignoring_selector, delivery)
+
+    private def matches(matchers:Array[(Delivery)=>Boolean], delivery:Delivery):Boolean = {
       var i=0;
       while( i < matchers.length ) {
         if(!matchers(i)(delivery))
@@ -548,6 +572,9 @@ class StompProtocolHandler extends ProtocolHandler {
 //  var session_manager:SessionSinkMux[StompFrame] = null
   var sink_manager:SinkMux[StompFrame] = null
   var connection_sink:Sink[StompFrame] = null
+  // Collects the receipts of the sends which completed since it was last
+  // drained so that they get written out together.
+  var receipt_source:CustomDispatchSource[AsciiBuffer, ListBuffer[AsciiBuffer]] = null
 
   var dead = false
   var closed = false
@@ -716,6 +743,16 @@ class StompProtocolHandler extends ProtocolHandler {
       x
     })
     connection_sink = new OverflowSink(sink_manager.open());
+    receipt_source = createSource(new ListEventAggregator[AsciiBuffer](), dispatchQueue)
+    receipt_source.setEventHandler(^{
+      val receipts = receipt_source.getData
+      if( !closed ) {
+        receipts.foreach { receipt =>
+          connection_sink.offer(StompFrame(RECEIPT, List((RECEIPT_ID, receipt))))
+        }
+      }
+    });
+    receipt_source.resume
     resume_read
   }
 
@@ -724,6 +761,10 @@ class StompProtocolHandler extends ProtocolHandler {
       heart_beat_monitor.stop
       closed=true;
       dead = true;
+      if( receipt_source!=null ) {
+        // receipts for deliveries acked after this point have no one to go to.
+        receipt_source.cancel
+      }
 
       import collection.JavaConversions._
       producerRoutes.values().foreach{ route=>
@@ -785,6 +826,7 @@ class StompProtocolHandler extends ProtocolHandler {
                 on_stomp_send(frame)
               case ACK =>
                 on_stomp_ack(frame)
+                release_ack(f, frame)
               case BEGIN =>
                 on_stomp_begin(frame.headers)
               case COMMIT =>
@@ -797,6 +839,7 @@ class StompProtocolHandler extends ProtocolHandler {
                 on_stomp_unsubscribe(frame.headers)
               case NACK =>
                 on_stomp_nack(frame)
+                release_ack(f, frame)
 
               case DISCONNECT =>
 
@@ -833,6 +876,18 @@ class StompProtocolHandler extends ProtocolHandler {
     }
   }
 
+  /**
+   * ACK and NACK frames only use their headers to look up the acked
+   * deliveries, so the codec can reuse their read buffer once they were
+   * handled.  Unless a filter replaced the frame, or a transaction or
+   * receipt holds on to its headers.
+   */
+  def release_ack(received:StompFrame, frame:StompFrame) = {
+    if( (received eq frame) && get(frame.headers, TRANSACTION).isEmpty && get(frame.headers, RECEIPT_REQUESTED).isEmpty ) {
+      codec.release(frame)
+    }
+  }
+
   def suspend_read(reason: =>String) = {
     waiting_on = reason _
     connection.transport.suspendRead
@@ -1162,6 +1217,7 @@ class StompProtocolHandler extends ProtocolHandler {
       delivery.message = message
       delivery.size = message.frame.size
       delivery.uow = uow
+      delivery.trace_received = host.sample_trace
       get(frame.headers, RETAIN).foreach { retain =>
         delivery.retain = retain match {
           case SET => RetainSet
@@ -1172,9 +1228,7 @@ class StompProtocolHandler extends ProtocolHandler {
 
       if( receipt!=null ) {
         delivery.ack = { (consumed, uow) =>
-          dispatchQueue <<| ^{
-            connection_sink.offer(StompFrame(RECEIPT, List((RECEIPT_ID, receipt))))
-          }
+          receipt_source.merge(receipt)
         }
       }
 
@@ -1251,7 +1305,7 @@ class StompProtocolHandler extends ProtocolHandler {
       case Some(x)=> x
         try {
           val s = decode_header(x)
-          (s, SelectorParser.parse(s))
+          (s, SelectorParser.compile(s))
         } catch {
           case e:FilterException =>
             die("Invalid selector expression: "+e.getMessage)
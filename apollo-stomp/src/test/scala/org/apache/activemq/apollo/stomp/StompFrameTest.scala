@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp
+
+import org.scalatest.matchers.ShouldMatchers
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.fusesource.hawtbuf.{Buffer, DataByteArrayOutputStream}
+import org.fusesource.hawtbuf.Buffer._
+import Stomp._
+
+class StompFrameTest extends FunSuiteSupport with ShouldMatchers {
+
+  def message = StompFrame(MESSAGE, List((DESTINATION, ascii("/queue/test")), (MESSAGE_ID, ascii("id:1"))), BufferContent(ascii("hello")))
+
+  def encode(frame:StompFrame):Buffer = {
+    val os = new DataByteArrayOutputStream(frame.size)
+    new StompCodec().encode(frame, os)
+    os.toBuffer
+  }
+
+  // Derives a frame per subscriber the way chained header appends would.
+  def fan_out(base:StompFrame, subscribers:Int, headers:Int) = {
+    (1 to subscribers).map { i =>
+      var frame = base
+      (1 to headers).foreach { h =>
+        frame = frame.append_headers((ascii("h"+h), ascii(i.toString))::Nil)
+      }
+      frame
+    }
+  }
+
+  def check_fan_out(subscribers:Int, headers:Int) = {
+    val base = message
+    val frames = fan_out(base, subscribers, headers)
+    val expected = frames.map(x=> encode(StompFrame(x.action, x.headers, x.content, x.updated_headers)))
+    frames.zip(expected).foreach { case (frame, expected) =>
+      encode(frame) should equal(expected)
+    }
+    base.encoded_tail should be(null)
+  }
+
+  test("shared encoding is dropped once the fan out is encoded") {
+    check_fan_out(3, 1)
+  }
+
+  test("shared encoding is dropped with redelivery and sequence headers") {
+    check_fan_out(3, 3)
+  }
+
+  test("a single subscriber does not build a shared encoding") {
+    val base = message
+    fan_out(base, 1, 3)
+    // what the codec gets when it encodes the frame.
+    base.shared_encoding should be(null)
+    base.encoded_tail should be(null)
+  }
+
+  test("shared encoding is dropped when frames get discarded") {
+    val base = message
+    val frames = fan_out(base, 3, 2)
+    encode(frames(0))
+    base.encoded_tail should not be(null)
+    frames(1).discard
+    frames(2).discard
+    base.encoded_tail should be(null)
+  }
+
+}
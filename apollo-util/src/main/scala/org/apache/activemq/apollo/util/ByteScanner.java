@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * Searches buffers for a byte value 8 bytes at a time by loading them as
+ * a long and testing all of its bytes at once.  Short ranges are scanned
+ * a byte at a time since setting up the long compare does not pay off.
+ * </p>
+ */
+public class ByteScanner {
+
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+
+    // Ranges shorter than this are scanned a byte at a time.
+    static final int MIN_WORD_SCAN = 16;
+
+    /**
+     * @return a long with the high bit of each byte which is zero in the
+     *         value set and all other bits clear.
+     */
+    static long zero_bytes(long value) {
+        long rc = (value & LOW_BITS) + LOW_BITS;
+        return ~(rc | value | LOW_BITS);
+    }
+
+    /**
+     * @return the 8 bytes of the array at offset as a big endian long.
+     */
+    static long get_long(byte[] data, int offset) {
+        return ((long) data[offset] << 56)
+                | ((data[offset + 1] & 0xFFL) << 48)
+                | ((data[offset + 2] & 0xFFL) << 40)
+                | ((data[offset + 3] & 0xFFL) << 32)
+                | ((data[offset + 4] & 0xFFL) << 24)
+                | ((data[offset + 5] & 0xFFL) << 16)
+                | ((data[offset + 6] & 0xFFL) << 8)
+                | (data[offset + 7] & 0xFFL);
+    }
+
+    /**
+     * @return the absolute index of the first byte equal to value in the
+     *         buffer between from (inclusive) and to (exclusive), or -1 if
+     *         there is none.  The position and limit of the buffer are
+     *         not used.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            int rc = indexOf(buffer.array(), offset + from, offset + to, value);
+            return rc < 0 ? rc : rc - offset;
+        }
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+        long pattern = (value & 0xFFL) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long matches = zero_bytes(buffer.getLong(i) ^ pattern);
+            if (matches != 0) {
+                // big endian: the first byte is the most significant one.
+                return i + (Long.numberOfLeadingZeros(matches) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link #indexOf(ByteBuffer, int, int, byte)} but for an array.
+     */
+    public static int indexOf(byte[] data, int from, int to, byte value) {
+        int i = from;
+        if (to - from >= MIN_WORD_SCAN) {
+            long pattern = (value & 0xFFL) * ONES;
+            for (; i + 8 <= to; i += 8) {
+                long matches = zero_bytes(get_long(data, i) ^ pattern);
+                if (matches != 0) {
+                    return i + (Long.numberOfLeadingZeros(matches) >>> 3);
+                }
+            }
+        }
+        for (; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the absolute index of the first byte equal to either value1
+     *         or value2 in the buffer between from (inclusive) and to
+     *         (exclusive), or -1 if there is none.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte value1, byte value2) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            int rc = indexOf(buffer.array(), offset + from, offset + to, value1, value2);
+            return rc < 0 ? rc : rc - offset;
+        }
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == value1 || b == value2) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link #indexOf(ByteBuffer, int, int, byte, byte)} but for an array.
+     */
+    public static int indexOf(byte[] data, int from, int to, byte value1, byte value2) {
+        int i = from;
+        if (to - from >= MIN_WORD_SCAN) {
+            long pattern1 = (value1 & 0xFFL) * ONES;
+            long pattern2 = (value2 & 0xFFL) * ONES;
+            for (; i + 8 <= to; i += 8) {
+                long word = get_long(data, i);
+                long matches = zero_bytes(word ^ pattern1) | zero_bytes(word ^ pattern2);
+                if (matches != 0) {
+                    return i + (Long.numberOfLeadingZeros(matches) >>> 3);
+                }
+            }
+        }
+        for (; i < to; i++) {
+            byte b = data[i];
+            if (b == value1 || b == value2) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
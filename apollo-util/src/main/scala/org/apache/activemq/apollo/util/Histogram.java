@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+/**
+ * <p>
+ * A log-linear histogram of positive long values.  Every power of two
+ * range is split into {@link #SUB_BUCKETS} equally sized buckets so that
+ * percentiles are reported with a relative error of at most 1/8 while
+ * the memory used stays fixed no matter how many values are recorded.
+ * The bucket array is only allocated once the first value is recorded.
+ * </p>
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    private long[] counts;
+    private long count;
+
+    /**
+     * @return the index of the bucket the value is counted in.
+     */
+    public static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub_bucket;
+    }
+
+    /**
+     * @return the largest value which gets counted in the bucket.
+     */
+    public static long highest_value(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+
+    /**
+     * Counts a value.  Negative values are ignored.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        if (counts == null) {
+            counts = new long[BUCKETS];
+        }
+        counts[bucket(value)]++;
+        count++;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public void clear() {
+        counts = null;
+        count = 0;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     */
+    public void add(Histogram other) {
+        if (other.counts == null) {
+            return;
+        }
+        if (counts == null) {
+            counts = new long[BUCKETS];
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+    }
+
+    /**
+     * @param fraction a value between 0 and 1, use 0.99 for the 99th percentile.
+     * @return an upper bound of the value below which the given fraction of
+     *         the recorded values fall, or 0 if no values were recorded.
+     */
+    public long percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highest_value(i);
+            }
+        }
+        return highest_value(BUCKETS - 1);
+    }
+
+    /**
+     * @return the non empty buckets encoded as pairs of bucket index and count.
+     */
+    public long[] to_sparse_array() {
+        if (counts == null) {
+            return new long[0];
+        }
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                used++;
+            }
+        }
+        long[] rc = new long[used * 2];
+        int pos = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                rc[pos++] = i;
+                rc[pos++] = counts[i];
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Adds the counts encoded by {@link #to_sparse_array()} to this histogram.
+     */
+    public void add_sparse_array(long[] sparse) {
+        if (sparse == null || sparse.length < 2) {
+            return;
+        }
+        if (counts == null) {
+            counts = new long[BUCKETS];
+        }
+        for (int i = 0; i + 1 < sparse.length; i += 2) {
+            int bucket = (int) sparse[i];
+            if (bucket >= 0 && bucket < BUCKETS) {
+                counts[bucket] += sparse[i + 1];
+                count += sparse[i + 1];
+            }
+        }
+    }
+
+}
@@ -19,7 +19,9 @@ package org.apache.activemq.apollo.util
 import java.util.concurrent.TimeUnit
 
 /**
- * <p>A Timer collects time durations and produces a TimeMetric.</p>
+ * <p>A Timer collects time durations and produces a TimeMetric.  The
+ * durations are also counted in a Histogram so that the metric can report
+ * percentiles.</p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -29,12 +31,17 @@ class TimeCounter extends MetricProducer[TimeMetric] {
   var min = Long.MaxValue
   var total = 0L
   var count = 0
+  val histogram = new Histogram
 
   def apply(reset: Boolean):TimeMetric = {
     val rc = if(count==0) {
       TimeMetric(0, 0, 0, 0)
     } else {
-      TimeMetric(count, total, min, max)
+      TimeMetric(count, total, min, max,
+        histogram.percentile(0.50) min max,
+        histogram.percentile(0.99) min max,
+        histogram.percentile(0.999) min max,
+        histogram.to_sparse_array)
     }
     if (reset) {
       clear()
@@ -47,6 +54,7 @@ class TimeCounter extends MetricProducer[TimeMetric] {
     min = Long.MaxValue
     total = 0L
     count = 0
+    histogram.clear()
   }
 
   /**
@@ -58,6 +66,7 @@ class TimeCounter extends MetricProducer[TimeMetric] {
       min = value min min
       total += value
       count += 1
+      histogram.record(value)
     }
   }
 
@@ -90,10 +99,19 @@ class TimeCounter extends MetricProducer[TimeMetric] {
   }
 }
 
-case class TimeMetric(count:Int, total:Long, min:Long, max:Long) {
+/**
+ * The p50, p99 and p999 fields hold the 50th, 99th and 99.9th percentiles
+ * and the histogram holds the non empty buckets of the timings in the
+ * format produced by Histogram.to_sparse_array so that metrics can be
+ * merged.
+ */
+case class TimeMetric(count:Int, total:Long, min:Long, max:Long, p50:Long=0, p99:Long=0, p999:Long=0, histogram:Array[Long]=null) {
   def maxTime(unit:TimeUnit) = (max).toFloat / unit.toNanos(1)
   def minTime(unit:TimeUnit) = (min).toFloat / unit.toNanos(1)
   def totalTime(unit:TimeUnit) = (total).toFloat / unit.toNanos(1)
   def avgTime(unit:TimeUnit) = if( count==0 ) 0f else totalTime(unit) / count
   def frequencyTime(unit:TimeUnit) = 1.toFloat / avgTime(unit)
+  def p50Time(unit:TimeUnit) = (p50).toFloat / unit.toNanos(1)
+  def p99Time(unit:TimeUnit) = (p99).toFloat / unit.toNanos(1)
+  def p999Time(unit:TimeUnit) = (p999).toFloat / unit.toNanos(1)
 }
\ No newline at end of file
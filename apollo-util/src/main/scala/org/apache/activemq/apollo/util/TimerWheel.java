@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A hierarchical timing wheel.  Adding and removing a timer is O(1) and
+ * advancing the wheel only visits the timers which are due plus the timers
+ * which get cascaded down from the higher levels of the wheel.
+ * </p>
+ * <p>
+ * Time is tracked in ticks of the configured resolution.  A timer never
+ * fires before it's deadline but may fire up to one tick after it.
+ * This class is not thread safe.
+ * </p>
+ */
+public class TimerWheel<V> {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * The handle to a timer added to the wheel.
+     */
+    public static final class Timer<V> {
+        private final V value;
+        private final long deadline;
+        private long tick;
+        private Timer<V> prev;
+        private Timer<V> next;
+        private Timer<V>[] bucket_list;
+        private int bucket;
+
+        private Timer(V value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return bucket_list != null;
+        }
+    }
+
+    private final long resolution;
+    private final Timer<V>[][] levels;
+    private long current_tick;
+    private int size;
+
+    /**
+     * @param resolution the length of a tick.
+     * @param now the current time in the same unit as the resolution.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long resolution, long now) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("resolution must be positive");
+        }
+        this.resolution = resolution;
+        this.current_tick = now / resolution;
+        this.levels = new Timer[LEVELS][];
+        for (int i = 0; i < LEVELS; i++) {
+            this.levels[i] = new Timer[SLOTS];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules a timer which fires once the time reaches the deadline.
+     */
+    public Timer<V> add(V value, long deadline) {
+        Timer<V> timer = new Timer<V>(value, deadline);
+        // round up so that we never fire early.  Done without adding to the
+        // deadline so that deadlines near Long.MAX_VALUE don't overflow.
+        timer.tick = deadline / resolution;
+        if (deadline % resolution > 0) {
+            timer.tick++;
+        }
+        link(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Cancels a previously scheduled timer.
+     *
+     * @return false if the timer had already fired or been removed.
+     */
+    public boolean remove(Timer<V> timer) {
+        if (timer == null || timer.bucket_list == null) {
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the specified time, collecting the values of all the
+     * timers whose deadline has been reached.
+     */
+    public void advance(long now, List<V> expired) {
+        long target = now / resolution;
+        while (current_tick < target) {
+            if (size == 0) {
+                // nothing to cascade or fire, just jump ahead.
+                current_tick = target;
+                break;
+            }
+            current_tick++;
+
+            // Cascade the higher levels down as the lower levels wrap around.
+            int level = 1;
+            while (level < LEVELS && ((current_tick >>> (SLOT_BITS * level)) << (SLOT_BITS * level)) == current_tick) {
+                int slot = (int) ((current_tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                Timer<V> timer = detach(levels[level], slot);
+                while (timer != null) {
+                    Timer<V> next = timer.next;
+                    timer.next = null;
+                    timer.prev = null;
+                    link(timer);
+                    timer = next;
+                }
+                level++;
+            }
+
+            fire(detach(levels[0], (int) (current_tick & SLOT_MASK)), expired);
+        }
+    }
+
+    private void fire(Timer<V> timer, List<V> expired) {
+        while (timer != null) {
+            Timer<V> next = timer.next;
+            timer.next = null;
+            timer.prev = null;
+            if (timer.tick <= current_tick) {
+                size--;
+                expired.add(timer.value);
+            } else {
+                // scheduled a full rotation (or more) ahead.
+                link(timer);
+            }
+            timer = next;
+        }
+    }
+
+    private Timer<V> detach(Timer<V>[] list, int slot) {
+        Timer<V> head = list[slot];
+        list[slot] = null;
+        Timer<V> cur = head;
+        while (cur != null) {
+            cur.bucket_list = null;
+            cur = cur.next;
+        }
+        return head;
+    }
+
+    private void link(Timer<V> timer) {
+        long tick = Math.max(timer.tick, current_tick + 1);
+        long delta = tick - current_tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        Timer<V>[] list = levels[level];
+        timer.bucket_list = list;
+        timer.bucket = slot;
+        timer.prev = null;
+        timer.next = list[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        list[slot] = timer;
+    }
+
+    private void unlink(Timer<V> timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            timer.bucket_list[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.next = null;
+        timer.prev = null;
+        timer.bucket_list = null;
+    }
+
+}
@@ -16,10 +16,12 @@
   */
 package org.apache.activemq.apollo.util.path
 
+import java.util.Collections
 import java.util.HashSet
 import java.util.Set
 import java.util.SortedSet
 import java.util.TreeSet
+import org.apache.activemq.apollo.util.LRUCache
 
 /**
   * A Map-like data structure allowing values to be indexed by
@@ -30,7 +32,10 @@ import java.util.TreeSet
   * path steps. So looking up the values for "TEST.*" or "*.TEST" will be
   * pretty fast. <br>
   * Looking up of a value could return a single value or a List of matching
-  * values if a wildcard or composite path is used.
+  * values if a wildcard or composite path is used. <br>
+  * The results of the most recent lookups are cached per path until a value
+  * they could match gets added or removed, so the returned sets are shared
+  * and can not be modified.
   *
   * @version $Revision: 1.3 $
   */
@@ -46,26 +51,58 @@ class PathMap[Value] {
     *         matching values.
     */
   def get(key: Path): Set[Value] = {
-    return findWildcardMatches(key)
+    val lookups = if( PathParser.containsWildCards(key) ) wildcard_cache else cache
+    var rc = lookups.get(key)
+    if( rc == null ) {
+      rc = findWildcardMatches(key)
+      lookups.put(key, rc)
+    }
+    rc
   }
 
   def put(key: Path, value: Value): Unit = {
     root.add(key, 0, value)
+    if( PathParser.containsWildCards(key) ) {
+      wildcard_values += 1
+    }
+    invalidate(key)
   }
 
   /**
     * Removes the value from the associated path
     */
   def remove(path: Path, value: Value): Boolean = {
-    return root.remove(path, 0, value)
+    val rc = root.remove(path, 0, value)
+    if( rc ) {
+      if( PathParser.containsWildCards(path) ) {
+        wildcard_values -= 1
+      }
+      invalidate(path)
+    }
+    return rc
   }
 
   def getRootNode = root
 
   protected def findWildcardMatches(path: Path): Set[Value] = {
     var answer: HashSet[Value] = new HashSet[Value]
-    root.appendMatchingValues(answer, path, 0)
-    return answer
+    if( wildcard_values == 0 && !PathParser.containsWildCards(path) ) {
+      // Only the node at the exact path can hold matching values.
+      var node = root
+      val parts = path.parts.iterator
+      while( node!=null && parts.hasNext ) {
+        node = node.getChild(parts.next)
+      }
+      if( node!=null ) {
+        answer.addAll(node.getValues)
+      }
+    } else {
+      root.appendMatchingValues(answer, path, 0)
+    }
+    if( answer.isEmpty ) {
+      return Collections.emptySet[Value]()
+    }
+    return Collections.unmodifiableSet(answer)
   }
 
   /**
@@ -75,6 +112,10 @@ class PathMap[Value] {
   def removeAll(key: Path): Set[Value] = {
     var rc: HashSet[Value] = new HashSet[Value]
     root.removeAll(rc, key, 0)
+    if( !rc.isEmpty ) {
+      wildcard_values = count_wildcard_values(root, false)
+      invalidate(key)
+    }
     return rc
   }
 
@@ -99,5 +140,77 @@ class PathMap[Value] {
     return sortedSet.last
   }
 
+  private def count_wildcard_values(node:PathMapNode[Value], wildcard:Boolean):Int = {
+    var rc = if( wildcard ) node.values.size else 0
+    val children = node.childNodes.values.iterator
+    while( children.hasNext ) {
+      val child = children.next.asInstanceOf[PathMapNode[Value]]
+      val child_wildcard = wildcard || (child.part match {
+        case x:LiteralPart => false
+        case RootPart => false
+        case _ => true
+      })
+      rc += count_wildcard_values(child, child_wildcard)
+    }
+    rc
+  }
+
+  /**
+    * Drops the cached lookups which could match values stored under the key.
+    * A literal key can only change the cached lookup of that same path and
+    * of the wildcard paths.
+    */
+  private def invalidate(key: Path): Unit = {
+    if( PathParser.containsWildCards(key) ) {
+      invalidate(cache, key)
+    } else {
+      cache.remove(key)
+    }
+    invalidate(wildcard_cache, key)
+  }
+
+  private def invalidate(lookups: LRUCache[Path, Set[Value]], key: Path): Unit = {
+    val i = lookups.keySet.iterator
+    while( i.hasNext ) {
+      if( may_overlap(i.next.parts, key.parts) ) {
+        i.remove()
+      }
+    }
+  }
+
+  /**
+    * Could a path matched by one of the paths also be matched by the other?
+    * Errs on the side of saying it can.
+    */
+  private def may_overlap(a: List[Part], b: List[Part]): Boolean = (a, b) match {
+    case (Nil, Nil) => true
+    case (AnyDescendantPart :: _, _) => true
+    case (_, AnyDescendantPart :: _) => true
+    case (Nil, _) | (_, Nil) => false
+    case (x :: xs, y :: ys) => may_overlap(x, y) && may_overlap(xs, ys)
+  }
+
+  private def may_overlap(a: Part, b: Part): Boolean = (a, b) match {
+    case (LiteralPart(x), LiteralPart(y)) => x == y
+    case (RootPart, RootPart) => true
+    case (RootPart, _: LiteralPart) | (_: LiteralPart, RootPart) => false
+    case _ => true
+  }
+
+  /**
+    * The maximum number of literal paths and of wildcard paths whose lookup
+    * results are cached.  The least recently used ones get evicted.
+    */
+  def max_cache_size = cache.getMaxCacheSize
+
+  def max_cache_size_=(value: Int) = {
+    cache.setMaxCacheSize(value)
+    wildcard_cache.setMaxCacheSize(value)
+  }
+
   private final val root = new PathMapNode[Value](null)
+  private final val cache = new LRUCache[Path, Set[Value]](1024*10)
+  private final val wildcard_cache = new LRUCache[Path, Set[Value]](1024*10)
+  // The number of values stored under wildcard paths.
+  private var wildcard_values = 0
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteScannerTest {
+
+    @Test()
+    public void testMatchesByteByByteSearch() {
+        Random random = new Random(0);
+        byte[] values = new byte[]{0, '\n', ':', (byte) 0x80, (byte) 0xFF};
+        for (int i = 0; i < 20000; i++) {
+            byte[] data = new byte[random.nextInt(40)];
+            for (int j = 0; j < data.length; j++) {
+                // mostly bytes next to the searched ones to catch carries.
+                data[j] = (byte) (values[random.nextInt(values.length)] + random.nextInt(3) - 1);
+            }
+            int from = data.length == 0 ? 0 : random.nextInt(data.length);
+            int to = from + random.nextInt(data.length - from + 1);
+            byte value = values[random.nextInt(values.length)];
+            assertEquals(slowIndexOf(data, from, to, value), ByteScanner.indexOf(data, from, to, value));
+        }
+    }
+
+    @Test()
+    public void testMatchesEitherValue() {
+        Random random = new Random(0);
+        byte[] values = new byte[]{0, '\n', ':', (byte) 0x80, (byte) 0xFF};
+        for (int i = 0; i < 20000; i++) {
+            byte[] data = new byte[random.nextInt(40)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (values[random.nextInt(values.length)] + random.nextInt(3) - 1);
+            }
+            int from = data.length == 0 ? 0 : random.nextInt(data.length);
+            int to = from + random.nextInt(data.length - from + 1);
+            byte value1 = values[random.nextInt(values.length)];
+            byte value2 = values[random.nextInt(values.length)];
+            int expected = slowIndexOf(data, from, to, value1);
+            int other = slowIndexOf(data, from, to, value2);
+            if (expected < 0 || (other >= 0 && other < expected)) {
+                expected = other;
+            }
+            assertEquals(expected, ByteScanner.indexOf(data, from, to, value1, value2));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            assertEquals(expected, ByteScanner.indexOf(direct, from, to, value1, value2));
+            assertEquals(slowIndexOf(data, from, to, value1), ByteScanner.indexOf(direct, from, to, value1));
+        }
+    }
+
+    @Test()
+    public void testNotFound() {
+        byte[] data = "CONNECT\naccept-version:1.1\n".getBytes();
+        assertEquals(-1, ByteScanner.indexOf(data, 0, data.length, (byte) 0));
+        assertEquals(7, ByteScanner.indexOf(data, 0, data.length, (byte) '\n'));
+        assertEquals(-1, ByteScanner.indexOf(data, 0, 7, (byte) '\n'));
+        assertEquals(26, ByteScanner.indexOf(data, 8, data.length, (byte) '\n'));
+    }
+
+    private static int slowIndexOf(byte[] data, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test()
+    public void testBucketsCoverValues() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = Histogram.bucket(value);
+            assertTrue(value <= Histogram.highest_value(bucket));
+            if (bucket > 0) {
+                assertTrue(value > Histogram.highest_value(bucket - 1));
+            }
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highest_value(Histogram.BUCKETS - 1));
+    }
+
+    @Test()
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1);
+        assertEquals(1000, histogram.count());
+        assertWithinError(500000, histogram.percentile(0.5));
+        assertWithinError(990000, histogram.percentile(0.99));
+        assertWithinError(1000000, histogram.percentile(1.0));
+    }
+
+    @Test()
+    public void testMergeSparseArrays() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        for (int i = 0; i < 100; i++) {
+            a.record(i);
+            b.record(i * 1000L);
+        }
+        Histogram merged = new Histogram();
+        merged.add_sparse_array(a.to_sparse_array());
+        merged.add_sparse_array(b.to_sparse_array());
+        a.add(b);
+        assertEquals(200, merged.count());
+        assertTrue(Arrays.equals(a.to_sparse_array(), merged.to_sparse_array()));
+        assertEquals(a.percentile(0.99), merged.percentile(0.99));
+    }
+
+    private static void assertWithinError(long expected, long actual) {
+        assertTrue("expected "+expected+" but was "+actual, actual >= expected && actual <= expected + expected / Histogram.SUB_BUCKETS);
+    }
+}
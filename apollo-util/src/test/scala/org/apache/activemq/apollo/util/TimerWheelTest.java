@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    @Test()
+    public void testFiresInOrderOfDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<String>(100, 0);
+        wheel.add("b", 250);
+        wheel.add("a", 150);
+        wheel.add("c", 100000);
+
+        ArrayList<String> expired = new ArrayList<String>();
+        wheel.advance(100, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(200, expired);
+        assertEquals("[a]", expired.toString());
+
+        wheel.advance(300, expired);
+        assertEquals("[a, b]", expired.toString());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(100000, expired);
+        assertEquals("[a, b, c]", expired.toString());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test()
+    public void testRemove() {
+        TimerWheel<String> wheel = new TimerWheel<String>(100, 0);
+        TimerWheel.Timer<String> timer = wheel.add("a", 500);
+        assertTrue(timer.isScheduled());
+        assertTrue(wheel.remove(timer));
+        assertFalse(wheel.remove(timer));
+
+        ArrayList<String> expired = new ArrayList<String>();
+        wheel.advance(1000, expired);
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test()
+    public void testDeadlineNearMaxValue() {
+        TimerWheel<String> wheel = new TimerWheel<String>(100, 0);
+        wheel.add("far", Long.MAX_VALUE);
+        wheel.add("near", 150);
+
+        ArrayList<String> expired = new ArrayList<String>();
+        wheel.advance(1000, expired);
+        assertEquals("[near]", expired.toString());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(1000000, expired);
+        assertEquals("[near]", expired.toString());
+        assertEquals(1, wheel.size());
+    }
+
+    @Test()
+    public void testAgainstReference() {
+        Random random = new Random(42);
+        long now = 12345;
+        TimerWheel<Long> wheel = new TimerWheel<Long>(10, now);
+        TreeMap<Long, TimerWheel.Timer<Long>> reference = new TreeMap<Long, TimerWheel.Timer<Long>>();
+
+        long id = 0;
+        for (int i = 0; i < 50000; i++) {
+            int op = random.nextInt(10);
+            if (op < 5) {
+                long deadline = now + (long) (Math.pow(10, random.nextInt(8)) * random.nextDouble());
+                long key = deadline * 100000 + (id++);
+                reference.put(key, wheel.add(key, deadline));
+            } else if (op < 6 && !reference.isEmpty()) {
+                assertTrue(wheel.remove(reference.pollLastEntry().getValue()));
+            } else {
+                now += random.nextInt(op == 9 ? 1000000 : 100);
+                ArrayList<Long> expired = new ArrayList<Long>();
+                wheel.advance(now, expired);
+                for (Long key : expired) {
+                    assertTrue("fired early", key / 100000 <= now);
+                    assertNotNull("fired twice", reference.remove(key));
+                }
+                if (!reference.isEmpty()) {
+                    assertTrue("fired late", reference.firstKey() / 100000 > now - 10);
+                }
+            }
+            assertEquals(reference.size(), wheel.size());
+        }
+    }
+}
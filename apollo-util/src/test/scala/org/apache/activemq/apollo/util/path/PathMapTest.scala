@@ -251,6 +251,50 @@ class PathMapTest {
     assertMapValue(map, "FOO.**", v2)
   }
 
+  @Test def testCachedLookupsSeeUpdates: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    put(map, "TEST.D1", v1)
+    assertMapValue(map, "TEST.D1", v1)
+    assertMapValue(map, "TEST.D2")
+    put(map, "TEST.*", v2)
+    assertMapValue(map, "TEST.D1", v1, v2)
+    assertMapValue(map, "TEST.D2", v2)
+    remove(map, "TEST.*", v2)
+    assertMapValue(map, "TEST.D1", v1)
+    assertMapValue(map, "TEST.D2")
+    put(map, "TEST.D2", v3)
+    assertMapValue(map, "TEST.D2", v3)
+    map.removeAll(createDestination("TEST.D2"))
+    assertMapValue(map, "TEST.D2")
+    assertMapValue(map, "TEST.D1", v1)
+  }
+
+  @Test def testSmallCacheSeesUpdates: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    map.max_cache_size = 2
+    put(map, "TEST.D1", v1)
+    put(map, "TEST.D2", v2)
+    put(map, "TEST.D3", v3)
+    assertMapValue(map, "TEST.D1", v1)
+    assertMapValue(map, "TEST.D2", v2)
+    assertMapValue(map, "TEST.D3", v3)
+    assertMapValue(map, "TEST.*", v1, v2, v3)
+    assertMapValue(map, "OTHER.*")
+    put(map, "TEST.D4", v4)
+    assertMapValue(map, "TEST.*", v1, v2, v3, v4)
+    assertMapValue(map, "TEST.D1", v1)
+    remove(map, "TEST.D1", v1)
+    assertMapValue(map, "TEST.D1")
+    assertMapValue(map, "TEST.*", v2, v3, v4)
+  }
+
+  @Test(expected = classOf[UnsupportedOperationException])
+  def testLookupResultsCanNotBeModified: Unit = {
+    var map: PathMap[String] = new PathMap[String]
+    put(map, "TEST.D1", v1)
+    map.get(createDestination("TEST.D1")).add(v2)
+  }
+
   protected def loadSample2(map: PathMap[String]): Unit = {
     put(map, "TEST.FOO", v1)
     put(map, "TEST.*", v2)
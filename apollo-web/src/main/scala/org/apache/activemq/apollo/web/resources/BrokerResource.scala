@@ -157,6 +157,8 @@ case class BrokerResource() extends Resource {
         result.state_since = broker.service_state.since
         result.version = Broker.version
         result.connection_counter = broker.connection_id_counter.get()
+        result.memory_used = broker.memory_manager.used.get()
+        result.memory_limit = broker.memory_manager.limit
         broker.virtual_hosts.values.foreach{ host=>
           // TODO: may need to sync /w virtual host's dispatch queue
           result.virtual_hosts.add( host.id )
@@ -434,6 +436,16 @@ case class BrokerResource() extends Resource {
     }
   }
 
+  @GET @Path("virtual-hosts/{id}/regroup")
+  def regroup(@PathParam("id") id : String):RegroupStatusDTO = {
+    with_virtual_host(id) { host =>
+      monitoring(host) {
+        val router:LocalRouter = host
+        router.connection_regrouper.status
+      }
+    }
+  }
+
   class JosqlHelper {
 
     def get(o:AnyRef, name:String):AnyRef = {
@@ -655,8 +667,22 @@ case class BrokerResource() extends Resource {
     }
   }
 
-  def status(q:Queue, entries:Boolean=false) = monitoring(q) {
-    q.status(entries)
+  def status(q:Queue, entries:Boolean=false):FutureResult[QueueStatusDTO] = monitoring(q) {
+    val rc = q.status(entries)
+    val partitions = q.partitions.toList.drop(1)
+    if( partitions.isEmpty ) {
+      rc
+    } else {
+      // A partitioned queue reports the metrics of all it's partitions.
+      sync_all(partitions) { partition =>
+        partition.get_queue_metrics
+      }.map { metrics =>
+        metrics.flatMap(_.success_option).foreach { x =>
+          DestinationMetricsSupport.add_destination_metrics(rc.metrics, x)
+        }
+        Success(rc)
+      }
+    }
   }
 
   @GET @Path("connectors")